@@ -16,7 +16,10 @@
  */
 package be.ugent.intec.halvade;
 
+import be.ugent.intec.halvade.hadoop.partitioners.ChrRgBalancedPartitioner;
 import be.ugent.intec.halvade.utils.ChromosomeSplitter;
+import be.ugent.intec.halvade.utils.CoverageProfile;
+import be.ugent.intec.halvade.utils.ExomeTargets;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import java.io.EOFException;
@@ -24,6 +27,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Properties;
 import net.sf.samtools.SAMSequenceDictionary;
@@ -71,6 +75,7 @@ public class HalvadeOptions {
     protected String RGPU = "UNIT1";
     protected String RGSM = "SAMPLE1";
     protected boolean useIPrep = true;
+    protected boolean useJVMPrep = false;
     protected boolean keepFiles = false;
     protected int stand_call_conf = -1;
     protected int stand_emit_conf = -1;
@@ -91,12 +96,30 @@ public class HalvadeOptions {
     protected boolean rnaPipeline = false;
     protected boolean reportAll = false;
     protected boolean useSharedMemory = false;
+    protected boolean keepSharedMemory = false;
     protected boolean useBamInput = false;
+    protected boolean splitFastq = false;
+    protected long fastqSplitSize = -1;
+    protected int feederBuffers = 4;
+    protected boolean alignerBamOutput = false;
+    protected int samParserThreads = 1;
+    protected int downloadThreads = 4;
+    protected int subIntervals = 1;
+    protected boolean useDistributedCache = false;
+    protected String shuffleTags = null;
+    protected String mapOutputCodec = "auto";
+    protected String coverageProfile = null;
+    protected boolean adaptiveRegions = false;
+    protected boolean exomeRegions = false;
+    protected int exomePadding = 200;
+    private static final String DEFAULT_SHUFFLE_TAGS = "NM";
     protected boolean setMapContainers = true, setReduceContainers = true;
     protected DecimalFormat onedec;
     private static final double REDUCE_TASKS_FACTOR = 1.68*15;
     private static final double DEFAULT_COVERAGE = 50;
     private static final double DEFAULT_COVERAGE_SIZE = 86;
+    private static final int REGION_OVERSPLIT = 4;
+    private static final String REGION_FILE = "regions.txt";
     
     public int GetOptions(String[] args, Configuration hConf) throws IOException, URISyntaxException {
         try {
@@ -118,6 +141,17 @@ public class HalvadeOptions {
             if(STARGenome != null) HalvadeConf.setStarDirOnHDFS(hConf, STARGenome);
             HalvadeConf.setKnownSitesOnHDFS(hConf, hdfsSites);
             HalvadeConf.setIsPaired(hConf, paired);
+            HalvadeConf.setSplitFastq(hConf, splitFastq);
+            HalvadeConf.setAlignerFeederBuffers(hConf, feederBuffers);
+            HalvadeConf.setAlignerBamOutput(hConf, alignerBamOutput);
+            HalvadeConf.setSAMParserThreads(hConf, samParserThreads);
+            HalvadeConf.setDownloadThreads(hConf, downloadThreads);
+            HalvadeConf.setSubIntervals(hConf, subIntervals);
+            HalvadeConf.setUseDistributedCache(hConf, useDistributedCache);
+            HalvadeConf.setUseSharedMemory(hConf, useSharedMemory);
+            HalvadeConf.setKeepSharedMemory(hConf, keepSharedMemory);
+            if(shuffleTags != null)
+                HalvadeConf.setShuffleTags(hConf, shuffleTags);
             HalvadeConf.setIsRNA(hConf, rnaPipeline);
             if(exomeBedFile != null)
                 HalvadeConf.setExomeBed(hConf, exomeBedFile);
@@ -126,6 +160,7 @@ public class HalvadeOptions {
             HalvadeConf.setUseBedTools(hConf, useBedTools);
             HalvadeConf.clearTaskFiles(hConf);
             HalvadeConf.setUseIPrep(hConf, useIPrep);
+            HalvadeConf.setUseJVMPreprocessing(hConf, useJVMPrep);
             HalvadeConf.setUseUnifiedGenotyper(hConf, useGenotyper);
             HalvadeConf.setReuseJVM(hConf, reuseJVM);
             HalvadeConf.setReadGroup(hConf, "ID:" + RGID + " LB:" + RGLB + " PL:" + RGPL + " PU:" + RGPU + " SM:" + RGSM);  
@@ -149,9 +184,18 @@ public class HalvadeOptions {
             Logger.DEBUG("Estimated coverage: " + roundOneDecimal(coverage));
             // set a minimum first where the real amount is based on
             reduces = (int) (coverage * REDUCE_TASKS_FACTOR);
-            ChromosomeSplitter splitter = new ChromosomeSplitter(dict, chr, reduces);
-            HalvadeConf.setMinChrLength(hConf, splitter.getRegionSize());
-            reduces = splitter.getRegionCount();
+            boolean customRegions = false;
+            if(exomeRegions)
+                customRegions = splitOnTargets(hConf, reduces);
+            else if(coverageProfile != null && adaptiveRegions)
+                customRegions = splitByCoverage(hConf, reduces);
+            else if(coverageProfile != null)
+                customRegions = balanceRegions(hConf, reduces);
+            if(!customRegions) {
+                ChromosomeSplitter splitter = new ChromosomeSplitter(dict, chr, reduces);
+                HalvadeConf.setMinChrLength(hConf, splitter.getRegionSize());
+                reduces = splitter.getRegionCount();
+            }
             
             
         } catch (ParseException e) {
@@ -165,6 +209,78 @@ public class HalvadeOptions {
         return 0;
     }
 
+    /*
+     * region boundaries are placed so that every region has about the same amount of reads,
+     * the mappers read the regions from a file in the output directory
+     */
+    protected boolean splitByCoverage(Configuration hConf, int minReduces) throws IOException, URISyntaxException {
+        CoverageProfile profile = CoverageProfile.read(coverageProfile, hConf);
+        ChromosomeSplitter splitter = new ChromosomeSplitter(dict, chr, minReduces, profile);
+        if(!splitter.isAdaptive()) {
+            Logger.INFO("The coverage profile doesn't cover any of the chromosomes, using regions based on length.");
+            return false;
+        }
+        HalvadeConf.setCoverageProfile(hConf, coverageProfile);
+        exportRegions(hConf, splitter);
+        return true;
+    }
+    
+    /*
+     * keys are groups of exome target clusters, reads that don't overlap 
+     * a (padded) target are dropped by the mappers
+     */
+    protected boolean splitOnTargets(Configuration hConf, int minReduces) throws IOException {
+        ExomeTargets targets = ExomeTargets.read(exomeBedFile, hConf, exomePadding);
+        ChromosomeSplitter splitter = new ChromosomeSplitter(dict, chr, minReduces, targets);
+        if(splitter.getRegionCount() == 0) {
+            Logger.INFO("The exome bed file doesn't have targets on any of the chromosomes, using regions based on length.");
+            return false;
+        }
+        exportRegions(hConf, splitter);
+        return true;
+    }
+    
+    protected void exportRegions(Configuration hConf, ChromosomeSplitter splitter) throws IOException {
+        String regionFile = out + (out.endsWith("/") ? "" : "/") + REGION_FILE;
+        splitter.exportSplitter(regionFile, hConf);
+        Logger.DEBUG("regions written to " + regionFile);
+        HalvadeConf.setRegionFile(hConf, regionFile);
+        HalvadeConf.setMinChrLength(hConf, splitter.getRegionSize());
+        reduces = splitter.getRegionCount();
+    }
+    
+    /*
+     * uses smaller regions than reducers and assigns them to the reducers 
+     * so that every reducer gets about the same amount of reads 
+     */
+    protected boolean balanceRegions(Configuration hConf, int minReduces) throws IOException, URISyntaxException {
+        CoverageProfile profile = CoverageProfile.read(coverageProfile, hConf);
+        ChromosomeSplitter splitter = new ChromosomeSplitter(dict, chr, minReduces * REGION_OVERSPLIT);
+        double[] expectedReads = splitter.getExpectedReads(profile);
+        double total = 0;
+        for(double r : expectedReads)
+            total += r;
+        if(total <= 0) {
+            Logger.INFO("The coverage profile doesn't cover any of the chromosomes, using regions based on length.");
+            return false;
+        }
+        int regions = splitter.getRegionCount();
+        int balancedReduces = Math.max(1, (int)Math.ceil((double)regions / REGION_OVERSPLIT));
+        int[] assignment = ChrRgBalancedPartitioner.assignRegions(expectedReads, balancedReduces);
+        int[] modulo = new int[regions];
+        for(int i = 0; i < regions; i++)
+            modulo[i] = i % balancedReduces;
+        Logger.DEBUG("balanced " + regions + " regions over " + balancedReduces + " reducers, largest reducer has " 
+                + roundOneDecimal(100.0 * ChrRgBalancedPartitioner.getMaxLoad(expectedReads, assignment, balancedReduces) / total) 
+                + "% of the reads instead of " 
+                + roundOneDecimal(100.0 * ChrRgBalancedPartitioner.getMaxLoad(expectedReads, modulo, balancedReduces) / total) + "%");
+        HalvadeConf.setCoverageProfile(hConf, coverageProfile);
+        HalvadeConf.setMinChrLength(hConf, splitter.getRegionSize());
+        HalvadeConf.setRegionAssignment(hConf, assignment);
+        reduces = balancedReduces;
+        return true;
+    }
+
     public String roundOneDecimal(double val) {
         return onedec.format(val);
     }
@@ -338,6 +454,57 @@ public class HalvadeOptions {
                                 .hasArg()
                                 .withDescription(  "Overrides the number of reduce tasks running simultaneously on each node. ")
                                 .create( "rpn" );  
+        Option optSplitFq = OptionBuilder.withArgName( "mb" )
+                                .hasOptionalArg()
+                                .withDescription(  "Allows splitting uncompressed, bzip2 or bgzf compressed fastq input files. " 
+                                        + "Optionally sets the maximum split size [MB], default is the HDFS block size.")
+                                .create( "split_fastq" );
+        Option optFeeder = OptionBuilder.withArgName( "buffers" )
+                                .hasArg()
+                                .withDescription(  "Sets the number of 1MB buffers used to feed reads to BWA mem on a separate thread, 0 disables the feeder thread [4].")
+                                .create( "feed_buffers" );
+        Option optSamThreads = OptionBuilder.withArgName( "threads" )
+                                .hasArg()
+                                .withDescription(  "Sets the number of threads that parse the SAM output of the aligner [1].")
+                                .create( "sam_threads" );
+        Option optDlThreads = OptionBuilder.withArgName( "threads" )
+                                .hasArg()
+                                .withDescription(  "Sets the number of threads that download the reference, index and known sites from HDFS, "
+                                        + "large files are downloaded in chunks. Files with a .md5 file next to them are verified [4].")
+                                .create( "dl_threads" );
+        Option optSubIntervals = OptionBuilder.withArgName( "intervals" )
+                                .hasArg()
+                                .withDescription(  "DNA only. Splits the region of a reducer in this many sub intervals, indel realignment, printreads and variant calling "
+                                        + "run on the sub intervals in parallel with the reducer threads divided over them. "
+                                        + "Base recalibration still runs on the whole region [1].")
+                                .create( "sub_intervals" );
+        Option optDistCache = OptionBuilder.withDescription(  "Stages the reference, index and known sites with the distributed cache, YARN localizes them "
+                                        + "once per node before the tasks start instead of the first task on every node downloading them.")
+                                .create( "dist_cache" );
+        Option optSlim = OptionBuilder.withArgName( "tag1,tag2,..." )
+                                .hasOptionalArg()
+                                .withDescription(  "Removes all SAM tags that are not in this list from the aligned reads before they are sent to the reducers, "
+                                        + "'none' removes all tags [" + DEFAULT_SHUFFLE_TAGS + "]. Read groups are added again by the reducers.")
+                                .create( "slim_tags" );
+        Option optMapCodec = OptionBuilder.withArgName( "codec" )
+                                .hasArg()
+                                .withDescription(  "Sets the compression of the map output, possible values: " 
+                                        + getNames(HalvadeResourceManager.MAP_OUTPUT_CODECS) + " [auto]. Auto uses deflate at the fastest level, "
+                                        + "snappy and lz4 need the native hadoop libraries on every node.")
+                                .create( "map_compression" );
+        Option optCovProfile = OptionBuilder.withArgName( "bedgraph" )
+                                .hasArg()
+                                .withDescription(  "Gives a read density profile of the reference (chr, start, end, reads), "
+                                        + "e.g. from a previous run with the same capture kit. Regions are assigned to reducers to balance the expected reads.")
+                                .create( "coverage_profile" );
+        Option optAdaptive = OptionBuilder.withDescription(  "Places the region boundaries so every region has about the same amount of reads in the coverage profile, "
+                                        + "instead of balancing regions of equal length. Requires -coverage_profile.")
+                                .create( "adaptive_regions" );
+        Option optExomeRegions = OptionBuilder.withArgName( "padding" )
+                                .hasOptionalArg()
+                                .withDescription(  "Builds the regions from the target clusters in the exome bed file, reads further than "
+                                        + "padding bases from a target are dropped by the mappers [200]. Requires -exome.")
+                                .create( "exome_regions" );
         Option optCustomArgs = OptionBuilder.withLongOpt("custom_args")
                                 .withArgName("tool=args")
                                 .hasArgs(2)
@@ -356,6 +523,9 @@ public class HalvadeOptions {
                                 .create( "c" );
         Option optPp = OptionBuilder.withDescription(  "Uses Picard to preprocess the data for GATK." )
                                 .create( "P" );
+        Option optJvmPrep = OptionBuilder.withDescription(  "Preprocesses the data for GATK in one pass in the reducer (clean sam, mark duplicates, add read group) " 
+                                        + "instead of with elPrep or Picard. Keeps all reads of a region in memory, task retries use Picard.")
+                                .create( "jvm_prep" );
         Option optBed = OptionBuilder.withDescription(  "Use Bedtools to select an interval of dbsnp." )
                                 .create( "b" );
         Option optJVM = OptionBuilder.withDescription(  "Set this to enable reusing JVM (avoids loading reference multiple times)." )
@@ -376,8 +546,13 @@ public class HalvadeOptions {
                                 .create( "drop" );
         Option optReportAll= OptionBuilder.withDescription(  "Reports all variants at the same location when combining variants.")
                                 .create( "report_all" );
-        Option optShmem= OptionBuilder.withDescription(  "Use shared memory in tools where supported. Currently only supports STAR aligner.")
+        Option optShmem= OptionBuilder.withDescription(  "Use shared memory in tools where supported. Currently supports the STAR aligner and BWA mem.")
                                 .create( "shmem" );
+        Option optShmemKeep= OptionBuilder.withDescription(  "Keeps the BWA index in shared memory after the job, later jobs with the same reference " 
+                                        + "on these nodes start aligning without loading the index. Implies -shmem, remove the index with 'bwa shm -d'.")
+                                .create( "shmem_keep" );
+        Option optAlnBam= OptionBuilder.withDescription(  "Aligners give uncompressed BAM instead of SAM to the mapper, BWA output is converted with samtools.")
+                                .create( "aln_bam" );
         Option optBamIn= OptionBuilder.withDescription(  "Uses aligned bam as input files instead of unaligned fastq files.")
                                 .create( "bam" );
         
@@ -397,6 +572,7 @@ public class HalvadeOptions {
         options.addOption(optPU);
         options.addOption(optSM);
         options.addOption(optPp);
+        options.addOption(optJvmPrep);
         options.addOption(optBed);
         options.addOption(optHap);
         options.addOption(optScc);
@@ -412,6 +588,9 @@ public class HalvadeOptions {
         options.addOption(optJustAlign);
         options.addOption(optCov);
         options.addOption(optEx);
+        options.addOption(optCovProfile);
+        options.addOption(optAdaptive);
+        options.addOption(optExomeRegions);
         options.addOption(optMpn);
         options.addOption(optRpn);
         options.addOption(optDry);
@@ -421,7 +600,17 @@ public class HalvadeOptions {
         options.addOption(optRna);
         options.addOption(optStarGenome);
         options.addOption(optShmem);
+        options.addOption(optShmemKeep);
         options.addOption(optBamIn);
+        options.addOption(optAlnBam);
+        options.addOption(optSplitFq);
+        options.addOption(optFeeder);
+        options.addOption(optSamThreads);
+        options.addOption(optDlThreads);
+        options.addOption(optSubIntervals);
+        options.addOption(optDistCache);
+        options.addOption(optSlim);
+        options.addOption(optMapCodec);
         options.addOption(optCustomArgs);
     }
     
@@ -456,6 +645,10 @@ public class HalvadeOptions {
             vcores *= 2;
         if(line.hasOption("shmem"))
             useSharedMemory = true;
+        if(line.hasOption("shmem_keep")) {
+            useSharedMemory = true;
+            keepSharedMemory = true;
+        }
         if(line.hasOption("mem"))
             mem = Double.parseDouble(line.getOptionValue("mem"));
         if(line.hasOption("mpn")) {
@@ -488,6 +681,20 @@ public class HalvadeOptions {
             java = line.getOptionValue("J");
         if(line.hasOption("exome"))
             exomeBedFile = line.getOptionValue("exome");
+        if(line.hasOption("coverage_profile"))
+            coverageProfile = line.getOptionValue("coverage_profile");
+        if(line.hasOption("adaptive_regions")) {
+            if(coverageProfile == null)
+                throw new ParseException("-adaptive_regions requires a coverage profile (-coverage_profile).");
+            adaptiveRegions = true;
+        }
+        if(line.hasOption("exome_regions")) {
+            if(exomeBedFile == null)
+                throw new ParseException("-exome_regions requires an exome bed file (-exome).");
+            exomeRegions = true;
+            if(line.getOptionValue("exome_regions") != null)
+                exomePadding = Integer.parseInt(line.getOptionValue("exome_regions"));
+        }
         if(line.hasOption("dryrun")) {
             dryRun = true;
             combineVcf = false;
@@ -506,8 +713,41 @@ public class HalvadeOptions {
             useGenotyper = false;
         if(line.hasOption("bam"))
             useBamInput = true;
+        if(line.hasOption("aln_bam"))
+            alignerBamOutput = true;
         if(line.hasOption("P"))
             useIPrep = false;
+        if(line.hasOption("jvm_prep"))
+            useJVMPrep = true;
+        if(line.hasOption("slim_tags")) {
+            shuffleTags = line.getOptionValue("slim_tags", DEFAULT_SHUFFLE_TAGS);
+            if(shuffleTags.equalsIgnoreCase("none"))
+                shuffleTags = "";
+        }
+        if(line.hasOption("map_compression")) {
+            mapOutputCodec = line.getOptionValue("map_compression");
+            if(!Arrays.asList(HalvadeResourceManager.MAP_OUTPUT_CODECS).contains(mapOutputCodec.toLowerCase()))
+                throw new ParseException("unknown map output compression '" + mapOutputCodec + "'.");
+        }
+        if(line.hasOption("dist_cache"))
+            useDistributedCache = true;
+        if(line.hasOption("sub_intervals"))
+            subIntervals = Integer.parseInt(line.getOptionValue("sub_intervals"));
+        if(subIntervals < 1)
+            throw new ParseException("the number of sub intervals should be at least 1.");
+        if(subIntervals > 1 && rnaPipeline)
+            throw new ParseException("sub intervals are only supported in the DNA pipeline.");
+        if(line.hasOption("dl_threads"))
+            downloadThreads = Integer.parseInt(line.getOptionValue("dl_threads"));
+        if(line.hasOption("sam_threads"))
+            samParserThreads = Integer.parseInt(line.getOptionValue("sam_threads"));
+        if(line.hasOption("feed_buffers"))
+            feederBuffers = Integer.parseInt(line.getOptionValue("feed_buffers"));
+        if(line.hasOption("split_fastq")) {
+            splitFastq = true;
+            if(line.getOptionValue("split_fastq") != null)
+                fastqSplitSize = Long.parseLong(line.getOptionValue("split_fastq")) * 1024 * 1024;
+        }
         if(line.hasOption("id"))
             RGID = line.getOptionValue("id");
         if(line.hasOption("lb"))
@@ -538,14 +778,18 @@ public class HalvadeOptions {
         "elprep",
         "samtools_view",
         "bedtools_bdsnp", "bedtools_exome",
-        "picard_buildbamindex", "picard_addorreplacereadgroup", "picard_markduplicates", "picard_cleansam", 
+        "picard_addorreplacereadgroup", "picard_markduplicates", "picard_cleansam", 
         "gatk_realignertargetcreator", "gatk_indelrealigner", "gatk_baserecalibrator", "gatk_printreads", "gatk_combinevariants", 
         "gatk_variantcaller", "gatk_variantannotator", "gatk_variantfiltration", "gatk_splitncigarreads" };
     
     protected String getProgramNames() {
-        String names = programNames[0];
-        for(int i = 1 ; i < programNames.length; i++){
-            names += ", " + programNames[i];
+        return getNames(programNames);
+    }
+    
+    protected String getNames(String[] list) {
+        String names = list[0];
+        for(int i = 1 ; i < list.length; i++){
+            names += ", " + list[i];
         }
         return names;
     }
@@ -20,6 +20,12 @@ package be.ugent.intec.halvade;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.Logger;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.Lz4Codec;
+import org.apache.hadoop.io.compress.SnappyCodec;
+import org.apache.hadoop.io.compress.zlib.ZlibCompressor;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
 
 /**
  *
@@ -45,6 +51,15 @@ public class HalvadeResourceManager {
         {MEM_REF,   MEM_REF}, // DNA
         {4*1024,    4*1024}   // combine
     };
+    // the alignments compress well and the shuffle is network bound, the junctions and vcf records are small
+    protected static final boolean[] COMPRESS_MAP_OUTPUT = {
+        false,  // RNA with shared memory pass1
+        true,   // RNA with shared memory pass2
+        true,   // RNA without shared memory
+        true,   // DNA
+        false   // combine
+    };
+    public static final String[] MAP_OUTPUT_CODECS = {"auto", "none", "snappy", "lz4", "deflate"};
     
     public static void setJobResources(HalvadeOptions opt, Configuration conf, int type, boolean subtractAM) {
         int tmpmem = (int) (opt.mem * 1024);
@@ -81,5 +96,33 @@ public class HalvadeResourceManager {
         
         HalvadeConf.setMapThreads(conf, opt.mthreads);
         HalvadeConf.setReducerThreads(conf, opt.rthreads);     
+        setMapOutputCompression(opt, conf, type);
+    }
+    
+    /*
+     * auto uses deflate at the fastest level: it is the only codec with a pure java 
+     * fallback, so it works on every node whatever native libraries the node has,
+     * and the fastest level keeps the extra cpu in the mappers low. 
+     * this is not based on a benchmark, snappy and lz4 need the native hadoop 
+     * libraries on every nodemanager and are only used when asked for explicitly
+     */
+    protected static void setMapOutputCompression(HalvadeOptions opt, Configuration conf, int type) {
+        String codec = opt.mapOutputCodec;
+        if(codec.equalsIgnoreCase("none") || (codec.equalsIgnoreCase("auto") && !COMPRESS_MAP_OUTPUT[type])) {
+            conf.setBoolean("mapreduce.map.output.compress", false);
+            return;
+        }
+        Class<? extends CompressionCodec> codecClass;
+        if(codec.equalsIgnoreCase("snappy"))
+            codecClass = SnappyCodec.class;
+        else if(codec.equalsIgnoreCase("lz4"))
+            codecClass = Lz4Codec.class;
+        else {
+            codecClass = DefaultCodec.class;
+            ZlibFactory.setCompressionLevel(conf, ZlibCompressor.CompressionLevel.BEST_SPEED);
+        }
+        Logger.DEBUG("map output compressed with " + codecClass.getSimpleName());
+        conf.setBoolean("mapreduce.map.output.compress", true);
+        conf.setClass("mapreduce.map.output.compress.codec", codecClass, CompressionCodec.class);
     }
 }
@@ -20,8 +20,9 @@ package be.ugent.intec.halvade;
 import fi.tkk.ics.hadoop.bam.SAMRecordWritable;
 import fi.tkk.ics.hadoop.bam.VariantContextWritable;
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.datatypes.SlimSAMRecordWritable;
 import be.ugent.intec.halvade.hadoop.datatypes.GenomeSJ;
-import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeTextInputFormat;
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeFastqInputFormat;
 import be.ugent.intec.halvade.hadoop.partitioners.*;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -34,6 +35,7 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.Timer;
 import fi.tkk.ics.hadoop.bam.BAMInputFormat;
 import fi.tkk.ics.hadoop.bam.VCFInputFormat;
@@ -41,7 +43,9 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
 
 /**
  *
@@ -98,6 +102,8 @@ public class MapReduceRunner extends Configured implements Tool  {
         
         Job pass1Job = Job.getInstance(pass1Conf, "Halvade pass 1 RNA pipeline");
         pass1Job.addCacheArchive(new URI(halvadeOpts.halvadeBinaries));
+        if(halvadeOpts.useDistributedCache)
+            HalvadeFileUtils.addReferenceToDistributedCache(pass1Job, pass1Conf, false, true, false);
         pass1Job.setJarByClass(be.ugent.intec.halvade.hadoop.mapreduce.HalvadeMapper.class);
         FileSystem fs = FileSystem.get(new URI(halvadeOpts.in), pass1Conf);
         try {
@@ -133,7 +139,9 @@ public class MapReduceRunner extends Configured implements Tool  {
             FileOutputFormat.setOutputPath(pass1Job, new Path(tmpOutDir));
             pass1Job.setMapperClass(be.ugent.intec.halvade.hadoop.mapreduce.StarAlignPassXMapper.class);
 
-            pass1Job.setInputFormatClass(HalvadeTextInputFormat.class);
+            pass1Job.setInputFormatClass(HalvadeFastqInputFormat.class);
+            if(halvadeOpts.splitFastq && halvadeOpts.fastqSplitSize > 0)
+                FileInputFormat.setMaxInputSplitSize(pass1Job, halvadeOpts.fastqSplitSize);
             pass1Job.setMapOutputKeyClass(GenomeSJ.class);
             pass1Job.setMapOutputValueClass(Text.class);
 
@@ -172,6 +180,9 @@ public class MapReduceRunner extends Configured implements Tool  {
         
         Job halvadeJob = Job.getInstance(halvadeConf, "Halvade" + pipeline);
         halvadeJob.addCacheArchive(new URI(halvadeOpts.halvadeBinaries));
+        if(halvadeOpts.useDistributedCache)
+            HalvadeFileUtils.addReferenceToDistributedCache(halvadeJob, halvadeConf, 
+                    jobType == HalvadeResourceManager.DNA, jobType != HalvadeResourceManager.DNA, !halvadeOpts.justAlign);
         halvadeJob.setJarByClass(be.ugent.intec.halvade.hadoop.mapreduce.HalvadeMapper.class);
         addInputFiles(halvadeOpts.in, halvadeConf, halvadeJob);
         FileOutputFormat.setOutputPath(halvadeJob, new Path(tmpOutDir));
@@ -194,9 +205,17 @@ public class MapReduceRunner extends Configured implements Tool  {
             halvadeJob.setNumReduceTasks(halvadeOpts.reduces);    
         
         halvadeJob.setMapOutputKeyClass(ChromosomeRegion.class);
-        halvadeJob.setMapOutputValueClass(SAMRecordWritable.class);
-        halvadeJob.setInputFormatClass(HalvadeTextInputFormat.class);
-        halvadeJob.setPartitionerClass(ChrRgPartitioner.class);
+        if(halvadeOpts.shuffleTags != null)
+            halvadeJob.setMapOutputValueClass(SlimSAMRecordWritable.class);
+        else
+            halvadeJob.setMapOutputValueClass(SAMRecordWritable.class);
+        halvadeJob.setInputFormatClass(HalvadeFastqInputFormat.class);
+        if(halvadeOpts.splitFastq && halvadeOpts.fastqSplitSize > 0)
+            FileInputFormat.setMaxInputSplitSize(halvadeJob, halvadeOpts.fastqSplitSize);
+        if(HalvadeConf.getRegionAssignment(halvadeConf) != null)
+            halvadeJob.setPartitionerClass(ChrRgBalancedPartitioner.class);
+        else
+            halvadeJob.setPartitionerClass(ChrRgPartitioner.class);
         halvadeJob.setSortComparatorClass(ChrRgSortComparator.class);
         halvadeJob.setGroupingComparatorClass(ChrRgGroupingComparator.class);
         halvadeJob.setOutputKeyClass(Text.class);
@@ -250,9 +269,21 @@ public class MapReduceRunner extends Configured implements Tool  {
         int ret = job.waitForCompletion(true) ? 0 : 1;
         timer.stop();
         Logger.DEBUG("Finished " + jobname + " [runtime: " + timer.getFormattedElapsedTime() + "]");
+        logShuffleSize(job);
         return ret;
     }
     
+    protected void logShuffleSize(Job job) throws IOException {
+        Counters counters = job.getCounters();
+        if(counters == null)
+            return;
+        long raw = counters.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue();
+        long materialized = counters.findCounter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES).getValue();
+        if(raw > 0)
+            Logger.DEBUG("map output: " + raw + " bytes, " + materialized + " bytes after compression [" 
+                    + (100 * materialized / raw) + "%]");
+    }
+    
     protected void addInputFiles(String input, Configuration conf, Job job) throws URISyntaxException, IOException {
         FileSystem fs = FileSystem.get(new URI(input), conf);
         if (fs.getFileStatus(new Path(input)).isDirectory()) {
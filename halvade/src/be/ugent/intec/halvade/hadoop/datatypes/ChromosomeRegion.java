@@ -55,18 +55,74 @@ public class ChromosomeRegion implements WritableComparable<ChromosomeRegion> {
         this.position = -1;
     }
 
+    /*
+     * the fields are written as order preserving variable length ints so
+     * the serialized keys sort the same as the fields, in the order 
+     * reduceNumber, chromosome, position, and can be compared as bytes
+     */
     @Override
     public void write(DataOutput d) throws IOException {
-        d.writeInt(chromosome);
-        d.writeInt(position);
-        d.writeInt(reduceNumber);
+        writeOrderedVInt(d, reduceNumber);
+        writeOrderedVInt(d, chromosome);
+        writeOrderedVInt(d, position);
     }
 
     @Override
     public void readFields(DataInput di) throws IOException {
-        chromosome = di.readInt();
-        position = di.readInt();
-        reduceNumber = di.readInt();
+        reduceNumber = readOrderedVInt(di);
+        chromosome = readOrderedVInt(di);
+        position = readOrderedVInt(di);
+    }
+    
+    /*
+     * values from -1 up to Integer.MAX_VALUE are stored as value + 1 in 1 to 5 bytes,
+     * the number of leading 1 bits in the first byte gives the number of extra bytes:
+     * 0xxxxxxx, 10xxxxxx +1, 110xxxxx +2, 1110xxxx +3, 11110000 +4 bytes
+     */
+    public static void writeOrderedVInt(DataOutput d, int value) throws IOException {
+        long v = (long)value + 1;
+        if(v < (1L << 7)) {
+            d.writeByte((int)v);
+        } else if(v < (1L << 14)) {
+            d.writeByte((int)(0x80 | (v >>> 8)));
+            d.writeByte((int)v);
+        } else if(v < (1L << 21)) {
+            d.writeByte((int)(0xC0 | (v >>> 16)));
+            d.writeByte((int)(v >>> 8));
+            d.writeByte((int)v);
+        } else if(v < (1L << 28)) {
+            d.writeByte((int)(0xE0 | (v >>> 24)));
+            d.writeByte((int)(v >>> 16));
+            d.writeByte((int)(v >>> 8));
+            d.writeByte((int)v);
+        } else {
+            d.writeByte(0xF0);
+            d.writeInt((int)v);
+        }
+    }
+    
+    public static int readOrderedVInt(DataInput di) throws IOException {
+        int first = di.readUnsignedByte();
+        int size = getOrderedVIntSize(first);
+        long v;
+        if(size == 5)
+            v = di.readInt() & 0xFFFFFFFFL;
+        else {
+            v = first & (0x7F >>> (size - 1));
+            for(int i = 1; i < size; i++)
+                v = (v << 8) | di.readUnsignedByte();
+        }
+        return (int)(v - 1);
+    }
+    
+    // returns the number of bytes of the encoded int starting with this byte
+    public static int getOrderedVIntSize(int firstByte) {
+        firstByte &= 0xFF;
+        if(firstByte < 0x80) return 1;
+        else if(firstByte < 0xC0) return 2;
+        else if(firstByte < 0xE0) return 3;
+        else if(firstByte < 0xF0) return 4;
+        else return 5;
     }
 
     @Override
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.datatypes;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ *
+ * @author ddecap
+ */
+public class FastqRecord implements Writable {
+    /*
+     * holds one fastq read or one interleaved read pair as raw bytes,
+     * every read is 4 lines and every line ends with a newline
+     * the buffer is reused for every record the record reader returns
+     */
+    public static final int MAX_READS = 2;
+    protected static final int INITIAL_SIZE = 1024;
+    protected byte[] bytes;
+    protected int length;
+    protected int reads;
+    protected int[] readOffset;
+    protected int[] sequenceLength;
+
+    public FastqRecord() {
+        bytes = new byte[INITIAL_SIZE];
+        readOffset = new int[MAX_READS + 1];
+        sequenceLength = new int[MAX_READS];
+        clear();
+    }
+
+    public void clear() {
+        length = 0;
+        reads = 0;
+        readOffset[0] = 0;
+    }
+
+    public void append(byte[] src, int offset, int len) {
+        ensureCapacity(length + len + 1);
+        System.arraycopy(src, offset, bytes, length, len);
+        length += len;
+        bytes[length++] = '\n';
+    }
+
+    public void endRead(int seqLength) {
+        sequenceLength[reads] = seqLength;
+        reads++;
+        readOffset[reads] = length;
+    }
+
+    protected void ensureCapacity(int size) {
+        if(size > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(size, bytes.length * 2));
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getReadCount() {
+        return reads;
+    }
+
+    public int getReadOffset(int read) {
+        return readOffset[read];
+    }
+
+    // includes the trailing newline
+    public int getReadLength(int read) {
+        return readOffset[read + 1] - readOffset[read];
+    }
+
+    public int getSequenceLength(int read) {
+        return sequenceLength[read];
+    }
+
+    // returns the 4 lines of the read without the last newline
+    public String getReadString(int read) {
+        return new String(bytes, readOffset[read], getReadLength(read) - 1, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void write(DataOutput d) throws IOException {
+        WritableUtils.writeVInt(d, reads);
+        for(int i = 0; i < reads; i++) {
+            WritableUtils.writeVInt(d, getReadLength(i));
+            WritableUtils.writeVInt(d, sequenceLength[i]);
+        }
+        d.write(bytes, 0, length);
+    }
+
+    @Override
+    public void readFields(DataInput di) throws IOException {
+        clear();
+        int n = WritableUtils.readVInt(di);
+        for(int i = 0; i < n; i++) {
+            int len = WritableUtils.readVInt(di);
+            sequenceLength[i] = WritableUtils.readVInt(di);
+            length += len;
+            readOffset[i + 1] = length;
+        }
+        reads = n;
+        ensureCapacity(length);
+        di.readFully(bytes, 0, length);
+    }
+
+    @Override
+    public String toString() {
+        if(length == 0) return "";
+        return new String(bytes, 0, length - 1, StandardCharsets.UTF_8);
+    }
+}
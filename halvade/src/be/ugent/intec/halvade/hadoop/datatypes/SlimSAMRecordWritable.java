@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.datatypes;
+
+import fi.tkk.ics.hadoop.bam.SAMRecordWritable;
+import java.util.Arrays;
+import java.util.HashSet;
+import net.sf.samtools.SAMRecord;
+
+/**
+ *
+ * @author ddecap
+ */
+public class SlimSAMRecordWritable extends SAMRecordWritable {
+    /*
+     * removes all tags that are not in the list from the record before it is 
+     * written, the read group is added again in the reducer so it's not needed
+     * records read in the reducer are not changed
+     */
+    protected HashSet<String> keepTags;
+
+    public SlimSAMRecordWritable() {
+        super();
+        keepTags = null;
+    }
+    
+    public SlimSAMRecordWritable(String[] tags) {
+        super();
+        keepTags = new HashSet<>(Arrays.asList(tags));
+    }
+
+    @Override
+    public void set(SAMRecord sam) {
+        if(keepTags != null) {
+            for(SAMRecord.SAMTagAndValue tag : sam.getAttributes()) {
+                if(!keepTags.contains(tag.tag))
+                    sam.setAttribute(tag.tag, null);
+            }
+        }
+        super.set(sam);
+    }
+}
@@ -17,10 +17,12 @@
 
 package be.ugent.intec.halvade.hadoop.mapreduce;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqRecord;
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
 import java.io.IOException;
-import org.apache.hadoop.io.Text;
 import be.ugent.intec.halvade.tools.BWAMemInstance;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.HalvadeFileLock;
 import be.ugent.intec.halvade.utils.Logger;
 import fi.tkk.ics.hadoop.bam.SAMRecordWritable;
 import java.net.URISyntaxException;
@@ -31,11 +33,21 @@ import org.apache.hadoop.io.LongWritable;
  * @author ddecap
  */
 public class BWAMemMapper extends HalvadeMapper<ChromosomeRegion, SAMRecordWritable> {
+    protected final String SH_MEM_LOCK = "load_bwa_sh_mem.lock";
+    protected HalvadeFileLock bwa_shmem_lock;
 
     @Override
-    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        super.cleanup(context);
+        // with keepshmem the index stays for the next job on this node
+        if(bwa_shmem_lock != null && allTasksHaveStarted && !HalvadeConf.getKeepSharedMemory(context.getConfiguration())) 
+            ((BWAMemInstance)instance).unloadSharedMemoryReference(bwa_shmem_lock);
+    }
+
+    @Override
+    protected void map(LongWritable key, FastqRecord value, Context context) throws IOException, InterruptedException {
         super.map(key, value, context);
-        ((BWAMemInstance)instance).feedLine(value.toString());
+        ((BWAMemInstance)instance).feedRead(value);
     }
 
     @Override
@@ -43,7 +55,9 @@ public class BWAMemMapper extends HalvadeMapper<ChromosomeRegion, SAMRecordWrita
         super.setup(context);
         try {
             String binDir = checkBinaries(context); 
-            instance = BWAMemInstance.getBWAInstance(context, binDir);
+            if(HalvadeConf.getUseSharedMemory(context.getConfiguration()))
+                bwa_shmem_lock = new HalvadeFileLock(context, HalvadeConf.getScratchTempDir(context.getConfiguration()), SH_MEM_LOCK);
+            instance = BWAMemInstance.getBWAInstance(context, binDir, bwa_shmem_lock);
         } catch (URISyntaxException ex) {
             Logger.EXCEPTION(ex);
             throw new InterruptedException();
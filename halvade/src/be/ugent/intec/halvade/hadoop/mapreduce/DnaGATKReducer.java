@@ -8,6 +8,7 @@ package be.ugent.intec.halvade.hadoop.mapreduce;
 
 import be.ugent.intec.halvade.tools.GATKTools;
 import be.ugent.intec.halvade.tools.PreprocessingTools;
+import be.ugent.intec.halvade.tools.ProcessException;
 import be.ugent.intec.halvade.tools.QualityException;
 import be.ugent.intec.halvade.utils.ChromosomeRange;
 import be.ugent.intec.halvade.utils.Logger;
@@ -15,8 +16,20 @@ import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.SAMRecordIterator;
 import fi.tkk.ics.hadoop.bam.SAMRecordWritable;
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
 
 /**
  *
@@ -34,10 +47,13 @@ public class DnaGATKReducer extends GATKReducer {
         String tmpFile2 = tmpFileBase + "-3.bam";
         String snps = tmpFileBase + ".vcf";    
         boolean useElPrep = HalvadeConf.getUseElPrep(context.getConfiguration());
+        boolean useJVMPrep = HalvadeConf.getUseJVMPreprocessing(context.getConfiguration());
         ChromosomeRange r = new ChromosomeRange();
         SAMRecordIterator SAMit = new SAMRecordIterator(values.iterator(), header, r);
         
-        if(useElPrep && isFirstAttempt)
+        if(useJVMPrep && isFirstAttempt)
+            jvmPreprocess(context, SAMit, preprocess);
+        else if(useElPrep && isFirstAttempt)
             elPrepPreprocess(context, tools, SAMit, preprocess);
         else  {
             if(!isFirstAttempt) Logger.DEBUG("attempt " + taskId + ", preprocessing with Picard for smaller peak memory");
@@ -46,9 +62,17 @@ public class DnaGATKReducer extends GATKReducer {
         region = makeRegionFile(context, r, tools, region);
         if(region == null) return;
         
-        indelRealignment(context, region, gatk, preprocess, tmpFile1);        
-        baseQualityScoreRecalibration(context, region, r, tools, gatk, tmpFile1, tmpFile2);        
-        DnaVariantCalling(context, region, gatk, tmpFile2, snps);     
+        int subIntervals = HalvadeConf.getSubIntervals(context.getConfiguration());
+        if(subIntervals > 1) {
+            if(!processSubIntervals(context, r, tools, gatk, region, preprocess, snps, subIntervals)) {
+                HalvadeFileUtils.removeLocalFile(region);
+                return;
+            }
+        } else {
+            indelRealignment(context, region, gatk, preprocess, tmpFile1);        
+            baseQualityScoreRecalibration(context, region, r, tools, gatk, tmpFile1, tmpFile2);        
+            DnaVariantCalling(context, region, gatk, tmpFile2, snps);     
+        }
         variantFiles.add(snps);
            
         HalvadeFileUtils.removeLocalFile(region);
@@ -56,4 +80,172 @@ public class DnaGATKReducer extends GATKReducer {
         Logger.DEBUG("total estimated time: " + estimatedTime / 1000);
     }
     
+    /*
+     * the region is split in sub intervals that are realigned, printed and called
+     * on a pool of workers that share the reducer threads, base recalibration needs
+     * all reads of the region and runs once in between on all realigned sub intervals.
+     * reads that overlap two sub intervals are in both realigned bams, the recalibration
+     * only gets them from the sub interval where their alignment starts so every read 
+     * is counted once as in the sequential path.
+     * returns false if no sub interval has a region to process and no vcf is made
+     */
+    protected boolean processSubIntervals(final Context context, ChromosomeRange r, PreprocessingTools tools, GATKTools gatk, 
+            String region, final String input, String output, int count) throws IOException, InterruptedException, URISyntaxException {
+        ChromosomeRange[] ranges = r.split(count);
+        final ArrayList<String> regions = new ArrayList<>();
+        ArrayList<Long> regionStarts = new ArrayList<>();
+        for(int i = 0; i < ranges.length; i++) {
+            String subRegion = makeRegionFile(context, ranges[i], tools, tmpFileBase + "-region" + i + ".intervals");
+            if(subRegion != null) {
+                regions.add(subRegion);
+                regionStarts.add(getPosition(header.getSequenceIndex(ranges[i].getSequenceName()), ranges[i].getAlignmentStart()));
+            }
+        }
+        int n = regions.size();
+        if(n == 0) {
+            Logger.DEBUG("no sub interval with a region file, no vcf results!!");
+            HalvadeFileUtils.removeLocalFile(keep, input, context, HalvadeCounters.FOUT_GATK_TMP);
+            HalvadeFileUtils.removeLocalFile(keep, input.replaceAll(".bam", ".bai"));
+            return false;
+        }
+        int workers = Math.max(1, Math.min(n, threads));
+        Logger.DEBUG("processing " + n + " sub intervals with " + workers + " workers");
+        final String[] realigned = new String[n];
+        final String[] recalibrationInput = new String[n];
+        final String[] recalibrated = new String[n];
+        final String[] vcfs = new String[n];
+        final String table = tmpFileBase + ".table";
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            Logger.DEBUG("run RealignerTargetCreator and IndelRealigner on sub intervals");
+            context.setStatus("run IndelRealigner on " + n + " sub intervals");
+            ArrayList<Callable<Void>> tasks = new ArrayList<>();
+            for(int i = 0; i < n; i++) {
+                final int id = i;
+                final GATKTools worker = getWorkerGATKTools(context, workers);
+                // the first and last sub interval also own the reads before and after the region
+                final long from = i == 0 ? Long.MIN_VALUE : regionStarts.get(i);
+                final long to = i == n - 1 ? Long.MAX_VALUE : regionStarts.get(i + 1);
+                realigned[i] = tmpFileBase + "-2-" + i + ".bam";
+                recalibrationInput[i] = tmpFileBase + "-2-" + i + "-owned.bam";
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        String targets = tmpFileBase + "-" + id + ".intervals";
+                        worker.runRealignerTargetCreator(input, targets, ref, regions.get(id));
+                        worker.runIndelRealigner(input, targets, realigned[id], ref, regions.get(id));
+                        HalvadeFileUtils.removeLocalFile(keep, targets);
+                        int reads = writeOwnedReads(realigned[id], recalibrationInput[id], from, to);
+                        Logger.DEBUG(reads + " reads of sub interval " + id + " used for recalibration");
+                        return null;
+                    }
+                });
+            }
+            runTasks(pool, tasks);
+            context.getCounter(HalvadeCounters.TOOLS_GATK).increment(2 * n);
+            HalvadeFileUtils.removeLocalFile(keep, input, context, HalvadeCounters.FOUT_GATK_TMP);
+            HalvadeFileUtils.removeLocalFile(keep, input.replaceAll(".bam", ".bai"));
+            
+            Logger.DEBUG("run baseRecalibrator");
+            context.setStatus("run baseRecalibrator");
+            context.getCounter(HalvadeCounters.TOOLS_GATK).increment(1);
+            String[] knownSites = getKnownSites(context, r, tools);
+            gatk.runBaseRecalibrator(recalibrationInput, table, ref, knownSites, region);
+            removeKnownSites(context, knownSites);
+            for(int i = 0; i < n; i++) {
+                HalvadeFileUtils.removeLocalFile(keep, recalibrationInput[i], context, HalvadeCounters.FOUT_GATK_TMP);
+                HalvadeFileUtils.removeLocalFile(keep, recalibrationInput[i].replaceAll(".bam", ".bai"));
+            }
+            
+            Logger.DEBUG("run printReads and variantCaller on sub intervals");
+            context.setStatus("run variantCaller on " + n + " sub intervals");
+            tasks.clear();
+            for(int i = 0; i < n; i++) {
+                final int id = i;
+                final GATKTools worker = getWorkerGATKTools(context, workers);
+                recalibrated[i] = tmpFileBase + "-3-" + i + ".bam";
+                vcfs[i] = tmpFileBase + "-" + i + ".vcf";
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        String subRegion = regions.get(id);
+                        worker.runPrintReads(realigned[id], recalibrated[id], ref, table, subRegion);
+                        HalvadeFileUtils.removeLocalFile(keep, realigned[id]);
+                        HalvadeFileUtils.removeLocalFile(keep, realigned[id].replaceAll(".bam", ".bai"));
+                        if(useUnifiedGenotyper) 
+                            worker.runUnifiedGenotyper(recalibrated[id], vcfs[id], scc, sec, ref, null, subRegion);
+                        else
+                            worker.runHaplotypeCaller(recalibrated[id], vcfs[id], false, scc, sec, ref, null, subRegion);
+                        HalvadeFileUtils.removeLocalFile(keep, recalibrated[id]);
+                        HalvadeFileUtils.removeLocalFile(keep, recalibrated[id].replaceAll(".bam", ".bai"));
+                        return null;
+                    }
+                });
+            }
+            runTasks(pool, tasks);
+            context.getCounter(HalvadeCounters.TOOLS_GATK).increment(2 * n);
+        } finally {
+            pool.shutdownNow();
+        }
+        
+        context.setStatus("merge sub interval vcfs");
+        HalvadeFileUtils.concatenateVCFs(vcfs, output);
+        HalvadeFileUtils.indexVCF(output);
+        context.getCounter(HalvadeCounters.OUT_VCF_FILES).increment(1);
+        HalvadeFileUtils.removeLocalFile(keep, table, context, HalvadeCounters.FOUT_GATK_TMP);
+        for(int i = 0; i < n; i++) {
+            HalvadeFileUtils.removeLocalFile(keep, vcfs[i], context, HalvadeCounters.FOUT_GATK_TMP);
+            HalvadeFileUtils.removeLocalFile(keep, vcfs[i] + ".idx");
+            HalvadeFileUtils.removeLocalFile(regions.get(i));
+        }
+        return true;
+    }
+    
+    protected static long getPosition(int sequenceIndex, int position) {
+        return ((long)sequenceIndex << 32) | (position & 0xffffffffL);
+    }
+    
+    /*
+     * writes the reads with an alignment start in [from, to) to an indexed bam
+     */
+    protected int writeOwnedReads(String input, String output, long from, long to) {
+        SAMFileReader reader = new SAMFileReader(new File(input));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.LENIENT);
+        SAMFileWriterFactory factory = new SAMFileWriterFactory();
+        factory.setCreateIndex(true);
+        SAMFileWriter writer = factory.makeBAMWriter(reader.getFileHeader(), true, new File(output));
+        int count = 0;
+        for(SAMRecord sam : reader) {
+            long position = getPosition(sam.getReferenceIndex(), sam.getAlignmentStart());
+            if(position >= from && position < to) {
+                writer.addAlignment(sam);
+                count++;
+            }
+        }
+        writer.close();
+        reader.close();
+        return count;
+    }
+    
+    protected GATKTools getWorkerGATKTools(Context context, int workers) {
+        GATKTools worker = new GATKTools(ref, bin);
+        worker.setContext(context);
+        worker.setThreads(Math.max(1, threads / workers));
+        worker.setMemory(context.getConfiguration().getInt("mapreduce.reduce.memory.mb", 2048) / workers);
+        if(java != null)
+            worker.setJava(java);
+        return worker;
+    }
+    
+    protected void runTasks(ExecutorService pool, List<Callable<Void>> tasks) throws InterruptedException {
+        for(Future<Void> result : pool.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (ExecutionException ex) {
+                Logger.EXCEPTION(ex);
+                throw new ProcessException("GATK on sub interval", -1);
+            }
+        }
+    }
+    
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import be.ugent.intec.halvade.hadoop.datatypes.FastqRecord;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import fi.tkk.ics.hadoop.bam.util.BGZFSplitGuesser;
+import fi.tkk.ics.hadoop.bam.util.WrapSeekable;
+import java.io.IOException;
+import java.io.InputStream;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ *
+ * @author ddecap
+ */
+public class FastqRecordReader extends RecordReader<LongWritable, FastqRecord> {
+    /*
+     * returns a full fastq read (single) or read pair (interleaved paired-end)
+     * as one record, so the mapper doesn't need to count lines
+     * 
+     * if the file is split, the line containing the first byte of the split is
+     * skipped and the reader resynchronises on the next read (pair), every read
+     * (pair) that starts at or before the end of the split belongs to this split.
+     * positions are byte offsets in uncompressed files, compressed block offsets
+     * in bzip2 files and virtual file pointers in bgzf files.
+     */
+    protected static final int LINES_PER_READ = 4;
+    protected static final int RESYNC_LINES = 3 * LINES_PER_READ;
+    protected static final int WHOLE_FILE = 0;
+    protected static final int UNCOMPRESSED = 1;
+    protected static final int SPLITTABLE_CODEC = 2;
+    protected static final int BGZF = 3;
+    protected int mode;
+    protected FSDataInputStream fileIn;
+    protected SplitCompressionInputStream splitIn;
+    protected BGZFBlockStream bgzfIn;
+    protected Decompressor decompressor;
+    protected LineReader in;
+    protected LongWritable key;
+    protected FastqRecord value;
+    protected Text line;
+    protected long start, end, consumed;
+    protected long progressStart, progressEnd;
+    protected int readsPerRecord;
+    protected boolean finished;
+    // lines read while resynchronising, these are returned first
+    protected Text[] lookahead;
+    protected long[] lookaheadPos;
+    protected int lookaheadHead, lookaheadCount;
+
+    @Override
+    public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException, InterruptedException {
+        FileSplit split = (FileSplit) genericSplit;
+        Configuration conf = context.getConfiguration();
+        readsPerRecord = HalvadeConf.getIsPaired(conf) ? 2 : 1;
+        start = split.getStart();
+        end = start + split.getLength();
+        progressStart = start;
+        progressEnd = end;
+        Path file = split.getPath();
+        FileSystem fs = file.getFileSystem(conf);
+        long fileLength = fs.getFileStatus(file).getLen();
+        fileIn = fs.open(file);
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+        key = new LongWritable();
+        value = new FastqRecord();
+        line = new Text();
+        lookahead = new Text[RESYNC_LINES];
+        for(int i = 0; i < RESYNC_LINES; i++)
+            lookahead[i] = new Text();
+        lookaheadPos = new long[RESYNC_LINES];
+        lookaheadHead = 0;
+        lookaheadCount = 0;
+        consumed = 0;
+        finished = false;
+        
+        if(start == 0 && end >= fileLength) {
+            mode = WHOLE_FILE;
+            InputStream is = fileIn;
+            if(codec != null) {
+                decompressor = CodecPool.getDecompressor(codec);
+                is = codec.createInputStream(fileIn, decompressor);
+            }
+            in = new LineReader(is, conf);
+            end = Long.MAX_VALUE;
+            return;
+        } else if(codec == null) {
+            mode = UNCOMPRESSED;
+            fileIn.seek(start);
+            in = new LineReader(fileIn, conf);
+        } else if(codec instanceof SplittableCompressionCodec) {
+            mode = SPLITTABLE_CODEC;
+            decompressor = CodecPool.getDecompressor(codec);
+            splitIn = ((SplittableCompressionCodec)codec).createInputStream(fileIn, 
+                    decompressor, start, end, SplittableCompressionCodec.READ_MODE.BYBLOCK);
+            in = new LineReader(splitIn, conf);
+            start = splitIn.getAdjustedStart();
+            end = splitIn.getAdjustedEnd();
+        } else {
+            // only bgzf files are split by HalvadeFastqInputFormat
+            mode = BGZF;
+            BGZFSplitGuesser guesser = new BGZFSplitGuesser(fileIn);
+            long startBlock = start == 0 ? 0 : guesser.guessNextBGZFBlockStart(start, fileLength);
+            long endBlock = guesser.guessNextBGZFBlockStart(end, fileLength);
+            if(startBlock >= endBlock) {
+                finished = true;
+                return;
+            }
+            start = startBlock << 16;
+            end = endBlock >= fileLength ? Long.MAX_VALUE : endBlock << 16;
+            BlockCompressedInputStream bgzf = new BlockCompressedInputStream(
+                    new WrapSeekable<FSDataInputStream>(fileIn, fileLength, file));
+            bgzf.seek(start);
+            bgzfIn = new BGZFBlockStream(bgzf);
+            in = new LineReader(bgzfIn, conf);
+        }
+        if(start != 0) {
+            // skip the (partial) line, it belongs to the previous split
+            readRawLine(line);
+            resync();
+        }
+    }
+    
+    protected long getFilePosition() throws IOException {
+        if(mode == UNCOMPRESSED)
+            return start + consumed;
+        else if(mode == SPLITTABLE_CODEC)
+            return splitIn.getPos();
+        else if(mode == BGZF)
+            return bgzfIn.getFilePointer(consumed);
+        else 
+            return consumed;
+    }
+    
+    protected long getNextLinePosition() throws IOException {
+        if(lookaheadCount > 0)
+            return lookaheadPos[lookaheadHead];
+        return getFilePosition();
+    }
+    
+    protected int readRawLine(Text str) throws IOException {
+        int bytes = in.readLine(str);
+        consumed += bytes;
+        return bytes;
+    }
+    
+    protected int readLine(Text str) throws IOException {
+        if(lookaheadCount > 0) {
+            str.set(lookahead[lookaheadHead]);
+            lookaheadHead++;
+            lookaheadCount--;
+            return str.getLength() + 1;
+        }
+        return readRawLine(str);
+    }
+    
+    protected void resync() throws IOException {
+        int count = 0;
+        while(count < RESYNC_LINES) {
+            long pos = getFilePosition();
+            if(readRawLine(lookahead[count]) == 0)
+                break;
+            lookaheadPos[count] = pos;
+            count++;
+        }
+        int first = 0;
+        while(first + LINES_PER_READ <= count && !isReadStart(first))
+            first++;
+        if(first + LINES_PER_READ > count) {
+            if(count == RESYNC_LINES)
+                throw new IOException("no fastq read found after position " + start);
+            finished = true;
+            return;
+        }
+        if(readsPerRecord == 2) {
+            // the first read could be the second read of a pair
+            if(first + 2 * LINES_PER_READ > count) {
+                finished = true;
+                return;
+            }
+            if(!isSameReadName(lookahead[first], lookahead[first + LINES_PER_READ]))
+                first += LINES_PER_READ;
+        }
+        lookaheadHead = first;
+        lookaheadCount = count - first;
+    }
+    
+    protected boolean isReadStart(int i) {
+        return startsWith(lookahead[i], '@') && startsWith(lookahead[i + 2], '+') 
+                && lookahead[i + 1].getLength() == lookahead[i + 3].getLength();
+    }
+    
+    protected static boolean startsWith(Text str, char c) {
+        return str.getLength() > 0 && str.getBytes()[0] == c;
+    }
+    
+    protected static int getReadNameLength(Text name) {
+        byte[] b = name.getBytes();
+        int len = 0;
+        while(len < name.getLength() && b[len] != ' ' && b[len] != '\t')
+            len++;
+        if(len > 2 && b[len - 2] == '/' && (b[len - 1] == '1' || b[len - 1] == '2'))
+            len -= 2;
+        return len;
+    }
+    
+    protected static boolean isSameReadName(Text name1, Text name2) {
+        int len = getReadNameLength(name1);
+        if(len != getReadNameLength(name2))
+            return false;
+        byte[] b1 = name1.getBytes();
+        byte[] b2 = name2.getBytes();
+        for(int i = 0; i < len; i++) 
+            if(b1[i] != b2[i]) 
+                return false;
+        return true;
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        if(finished)
+            return false;
+        long pos = getNextLinePosition();
+        if(pos > end) {
+            finished = true;
+            return false;
+        }
+        value.clear();
+        for(int r = 0; r < readsPerRecord; r++) {
+            if(!readRead()) {
+                finished = true;
+                if(r == 0) return false;
+                throw new IOException("incomplete read pair at position " + pos);
+            }
+        }
+        key.set(pos);
+        return true;
+    }
+
+    protected boolean readRead() throws IOException {
+        int seqLength = 0;
+        for(int i = 0; i < LINES_PER_READ; i++) {
+            if(readLine(line) == 0) {
+                if(i == 0) return false;
+                throw new IOException("truncated fastq read at position " + getFilePosition());
+            }
+            if(i == 0 && line.getLength() == 0) {
+                // skip empty lines between reads
+                i--;
+                continue;
+            }
+            if(i == 0 && !startsWith(line, '@'))
+                throw new IOException("invalid fastq read name at position " + getFilePosition() + ": " + line);
+            if(i == 1)
+                seqLength = line.getLength();
+            if(i == 2 && !startsWith(line, '+'))
+                throw new IOException("invalid fastq separator at position " + getFilePosition() + ": " + line);
+            value.append(line.getBytes(), 0, line.getLength());
+        }
+        value.endRead(seqLength);
+        return true;
+    }
+
+    @Override
+    public LongWritable getCurrentKey() throws IOException, InterruptedException {
+        return key;
+    }
+
+    @Override
+    public FastqRecord getCurrentValue() throws IOException, InterruptedException {
+        return value;
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        if(finished) return 1.0f;
+        if(progressStart == progressEnd) return 0.0f;
+        return Math.min(1.0f, (fileIn.getPos() - progressStart) / (float)(progressEnd - progressStart));
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if(in != null)
+                in.close();
+            else if(fileIn != null)
+                fileIn.close();
+        } finally {
+            if(decompressor != null) {
+                CodecPool.returnDecompressor(decompressor);
+                decompressor = null;
+            }
+        }
+    }
+    
+    /*
+     * never reads past the end of the current bgzf block, so the virtual 
+     * file pointer of every byte given to the line reader is known
+     */
+    protected static class BGZFBlockStream extends InputStream {
+        private final BlockCompressedInputStream in;
+        private long filled, fillStart, fillPointer;
+        
+        public BGZFBlockStream(BlockCompressedInputStream in) {
+            this.in = in;
+            filled = 0;
+            fillStart = 0;
+            fillPointer = in.getFilePointer();
+        }
+        
+        // returns the virtual file pointer after the given number of bytes
+        public long getFilePointer(long bytes) throws IOException {
+            if(bytes < filled)
+                return fillPointer + (bytes - fillStart);
+            in.available(); // loads the next block if the current one is done
+            return in.getFilePointer();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int available = in.available();
+            fillPointer = in.getFilePointer();
+            fillStart = filled;
+            int n = in.read(b, off, available > 0 ? Math.min(len, available) : len);
+            if(n > 0)
+                filled += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.io.IOException;
 import net.sf.samtools.*;
 import org.apache.hadoop.fs.FileSystem;
 import be.ugent.intec.halvade.tools.GATKTools;
+import be.ugent.intec.halvade.tools.InMemoryPreprocessor;
 import be.ugent.intec.halvade.tools.PreprocessingTools;
 import be.ugent.intec.halvade.tools.ProcessException;
 import be.ugent.intec.halvade.tools.QualityException;
@@ -45,6 +46,7 @@ public abstract class GATKReducer extends HalvadeReducer {
     protected boolean useUnifiedGenotyper;
     protected double sec, scc;
     protected String exomeBedFile;   
+    protected String localExomeBed;
     protected int newMaxQualScore = 60;
     protected int windows, cluster;
     protected double minFS, maxQD;
@@ -100,24 +102,32 @@ public abstract class GATKReducer extends HalvadeReducer {
         Logger.DEBUG("call elPrep");
         context.setStatus("call elPrep");
         int reads;
-        if(keep) 
+        if(keep) {
             reads = tools.callElPrep(preSamOut, samOut, rg, threads, input, outHeader, dictF);
-        else
-            reads = tools.streamElPrep(context, samOut, rg, threads, input, outHeader, dictF);
+            context.setStatus("convert SAM to indexed BAM");
+            Logger.DEBUG("convert SAM to indexed BAM");
+            tools.convertSAMToIndexedBAM(samOut, output, threads);
+        } else
+            reads = tools.streamElPrep(context, output, rg, threads, input, outHeader, dictF);
         
         Logger.DEBUG(reads + " reads processed in elPrep");
         context.getCounter(HalvadeCounters.IN_PREP_READS).increment(reads);
-        context.setStatus("convert SAM to BAM");
-        Logger.DEBUG("convert SAM to BAM");
-        tools.callSAMToBAM(samOut, output, threads);
-        context.setStatus("build bam index");
-        Logger.DEBUG("build bam index");
-        tools.runBuildBamIndex(output);
         // remove temporary files
         HalvadeFileUtils.removeLocalFile(keep, preSamOut, context, HalvadeCounters.FOUT_GATK_TMP);
         HalvadeFileUtils.removeLocalFile(keep, samOut, context, HalvadeCounters.FOUT_GATK_TMP);
     }
     
+    protected void jvmPreprocess(Context context, SAMRecordIterator input, String output) {
+        outHeader = header.clone();
+        InMemoryPreprocessor preprocessor = new InMemoryPreprocessor(context, outHeader, 
+                createReadGroupRecord(RGID, RGLB, RGPL, RGPU, RGSM));
+        Logger.DEBUG("clean sam, mark duplicates and add read-group");
+        context.setStatus("preprocess in jvm");
+        int reads = preprocessor.preprocess(input, output);
+        Logger.DEBUG(reads + " reads preprocessed");
+        context.getCounter(HalvadeCounters.IN_PREP_READS).increment(reads);
+    }
+    
     protected void PicardPreprocess(Context context, PreprocessingTools tools, SAMRecordIterator input, String output) throws InterruptedException, QualityException {
         outHeader = header.clone();
         outHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
@@ -153,12 +163,9 @@ public abstract class GATKReducer extends HalvadeReducer {
         Logger.DEBUG("mark duplicates");
         context.setStatus("mark duplicates");
         tools.runMarkDuplicates(tmpOut2, tmpOut3, tmpMetrics);
-        Logger.DEBUG("add read-group");
+        Logger.DEBUG("add read-group and build bam index");
         context.setStatus("add read-group");
-        tools.runAddOrReplaceReadGroups(tmpOut3, output, RGID, RGLB, RGPL, RGPU, RGSM);
-        Logger.DEBUG("build bam index");
-        context.setStatus("build bam index");
-        tools.runBuildBamIndex(output);
+        tools.runAddOrReplaceReadGroups(tmpOut3, output, RGID, RGLB, RGPL, RGPU, RGSM, true);
         
         estimatedTime = System.currentTimeMillis() - startTime;
         Logger.DEBUG("estimated time: " + estimatedTime / 1000);
@@ -170,9 +177,9 @@ public abstract class GATKReducer extends HalvadeReducer {
         HalvadeFileUtils.removeLocalFile(keep, tmpOut3, context, HalvadeCounters.FOUT_GATK_TMP);       
     }
 
-    protected String makeRegionFile(Context context, ChromosomeRange r, PreprocessingTools tools, String region) throws URISyntaxException, IOException, InterruptedException {        
-        // download exomebed 
-        if(exomeBedFile != null) {
+    protected String getLocalExomeBed(Context context) throws URISyntaxException, IOException {
+        // download exomebed once per task
+        if(localExomeBed == null || !new File(localExomeBed).exists()) {
             String exomebed = tmpFileBase  + "exome.bed";
             if(exomeBedFile.endsWith(".gz"))
                 exomebed += ".gz";
@@ -180,7 +187,14 @@ public abstract class GATKReducer extends HalvadeReducer {
                 exomeBedFile, exomebed);
             if(exomebed.endsWith(".gz"))
                 exomebed = HalvadeFileUtils.Unzip(exomebed);
-            region = tools.filterExomeBed(exomebed, r);
+            localExomeBed = exomebed;
+        }
+        return localExomeBed;
+    }
+
+    protected String makeRegionFile(Context context, ChromosomeRange r, PreprocessingTools tools, String region) throws URISyntaxException, IOException, InterruptedException {        
+        if(exomeBedFile != null) {
+            region = tools.filterExomeBed(getLocalExomeBed(context), r);
             if(region == null) {
                 Logger.DEBUG("empty region file, no vcf results!!");
                 return null;
@@ -211,16 +225,7 @@ public abstract class GATKReducer extends HalvadeReducer {
     protected void baseQualityScoreRecalibration(Context context, String region, ChromosomeRange r, PreprocessingTools tools, GATKTools gatk, 
             String input, String output) throws InterruptedException, IOException, URISyntaxException {
         String table = tmpFileBase + ".table";
-        
-        // get snp database(s)
-        String[] snpslocal = HalvadeFileUtils.downloadSites(context, taskId);
-        String[] newKnownSites = new String[snpslocal.length];
-        for(int i = 0 ; i < snpslocal.length; i++) {
-            if(useBedTools) newKnownSites[i] = tools.filterDBSnps(ref.replaceAll("fasta", "dict"), snpslocal[i], r, tmpFileBase, threads); 
-            else newKnownSites[i] = snpslocal[i]; 
-            if(newKnownSites[i].endsWith(".gz"))
-                newKnownSites[i] = HalvadeFileUtils.Unzip(newKnownSites[i]);
-        }
+        String[] newKnownSites = getKnownSites(context, r, tools);
         
         // should be created automatically by GATK v3.0 or higher
 //        Logger.DEBUG("build bam index");
@@ -239,8 +244,26 @@ public abstract class GATKReducer extends HalvadeReducer {
         HalvadeFileUtils.removeLocalFile(keep, input, context, HalvadeCounters.FOUT_GATK_TMP);
         HalvadeFileUtils.removeLocalFile(keep, input.replaceAll(".bam", ".bai"));
         HalvadeFileUtils.removeLocalFile(keep, table, context, HalvadeCounters.FOUT_GATK_TMP);
-        for(int i = 0 ; i < newKnownSites.length; i++) {
-            if(useBedTools) HalvadeFileUtils.removeLocalFile(keep, newKnownSites[i], context, HalvadeCounters.FOUT_GATK_TMP);
+        removeKnownSites(context, newKnownSites);
+    }
+    
+    protected String[] getKnownSites(Context context, ChromosomeRange r, PreprocessingTools tools) 
+            throws InterruptedException, IOException, URISyntaxException {
+        // get snp database(s)
+        String[] snpslocal = HalvadeFileUtils.downloadSites(context, taskId);
+        String[] newKnownSites = new String[snpslocal.length];
+        for(int i = 0 ; i < snpslocal.length; i++) {
+            if(useBedTools) newKnownSites[i] = tools.filterDBSnps(ref.replaceAll("fasta", "dict"), snpslocal[i], r, tmpFileBase, threads); 
+            else newKnownSites[i] = snpslocal[i]; 
+            if(newKnownSites[i].endsWith(".gz"))
+                newKnownSites[i] = HalvadeFileUtils.Unzip(newKnownSites[i]);
+        }
+        return newKnownSites;
+    }
+    
+    protected void removeKnownSites(Context context, String[] knownSites) {
+        for(int i = 0 ; i < knownSites.length; i++) {
+            if(useBedTools) HalvadeFileUtils.removeLocalFile(keep, knownSites[i], context, HalvadeCounters.FOUT_GATK_TMP);
         }
     }
 
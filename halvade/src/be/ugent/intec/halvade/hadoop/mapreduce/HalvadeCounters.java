@@ -24,6 +24,7 @@ public enum HalvadeCounters {
     TIME_BWA_ALN,
     TIME_BWA_MEM,
     TIME_BWA_SAMPE,
+    TIME_BWA_REF,
     TIME_STAR,
     TIME_STAR_REF,
     TIME_STAR_BUILD,
@@ -34,13 +35,17 @@ public enum HalvadeCounters {
     TIME_PICARD_CLEANSAM,
     TIME_PICARD_MARKDUP,
     TIME_PICARD_ADDGRP,
-    TIME_PICARD_BAI,    
+    TIME_JVM_PREPROCESS,
     TIME_GATK_RECAL,  
     TIME_GATK_TARGET_CREATOR, 
     TIME_GATK_INDEL_REALN, 
     TIME_GATK_PRINT_READS, 
     TIME_GATK_COMBINE_VCF,
     TIME_GATK_VARIANT_CALLER,
+    TIME_FEEDER_WAIT_ALIGNER,
+    TIME_FEEDER_WAIT_INPUT,
+    TIME_REF_DOWNLOAD,
+    TIME_LOCK_WAIT,
     
     IN_BWA_READS,
     IN_PREP_READS,
@@ -49,6 +54,7 @@ public enum HalvadeCounters {
     OUT_VCF_FILES,
     OUT_UNMAPPED_READS,
     OUT_DIFF_CHR_READS,
+    OUT_OFF_TARGET_READS,
     OUT_OVERLAPPING_READS,
     
     FOUT_BWA_TMP,
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import be.ugent.intec.halvade.hadoop.datatypes.FastqRecord;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.Logger;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ *
+ * @author ddecap
+ */
+public class HalvadeFastqInputFormat extends FileInputFormat<LongWritable, FastqRecord> {
+
+    @Override
+    public RecordReader<LongWritable, FastqRecord> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+        return new FastqRecordReader();
+    }
+
+    /*
+     * files are only split if enabled and when the reader can find read 
+     * boundaries inside the file: uncompressed, bzip2 or bgzf compressed files
+     */
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+        Configuration conf = context.getConfiguration();
+        if(!HalvadeConf.getSplitFastq(conf))
+            return false;
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+        if(codec == null || codec instanceof SplittableCompressionCodec)
+            return true;
+        return isBGZF(conf, file);
+    }
+    
+    protected boolean isBGZF(Configuration conf, Path file) {
+        try (InputStream is = new BufferedInputStream(file.getFileSystem(conf).open(file))) {
+            return BlockCompressedInputStream.isValidFile(is);
+        } catch (IOException ex) {
+            Logger.EXCEPTION(ex);
+            return false;
+        }
+    }
+}
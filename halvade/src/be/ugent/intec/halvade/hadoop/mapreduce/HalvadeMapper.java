@@ -6,6 +6,7 @@
 
 package be.ugent.intec.halvade.hadoop.mapreduce;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqRecord;
 import be.ugent.intec.halvade.tools.AlignerInstance;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
@@ -17,11 +18,10 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 
 //ChromosomeRegion, SAMRecordWritable
-public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, Text, T1, T2> {
+public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, FastqRecord, T1, T2> {
     protected int count, readcount;
     protected AlignerInstance instance;
     protected boolean allTasksHaveStarted;
@@ -42,11 +42,9 @@ public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, Text, T1, T2> {
     
 
     @Override
-    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-        if(count % 4 == 0) {
-            context.getCounter(HalvadeCounters.IN_BWA_READS).increment(1);
-            readcount++;
-        }
+    protected void map(LongWritable key, FastqRecord value, Context context) throws IOException, InterruptedException {
+        context.getCounter(HalvadeCounters.IN_BWA_READS).increment(value.getReadCount());
+        readcount += value.getReadCount();
         count++;
     }
 
@@ -61,15 +61,16 @@ public class HalvadeReducer extends Reducer<ChromosomeRegion, SAMRecordWritable,
         Logger.DEBUG("count: " + count);
         String output = null;
         String outputdir = HalvadeConf.getOutDir(context.getConfiguration());   
-        if(variantFiles.size() > 1) { // should not happen -> multiple keys per reducer
+        if(variantFiles.size() > 1) { // multiple keys per reducer, e.g. with a coverage profile
             GATKTools gatk = new GATKTools(ref, bin);
             gatk.setThreads(threads);
             gatk.setContext(context);
             if(java !=null) gatk.setJava(java);
             output = tmp + context.getTaskAttemptID().toString() + ".vcf";
             Logger.DEBUG("run CombineVariants");
+            // all keys are the same sample, keep its genotypes
             gatk.runCombineVariants(variantFiles.toArray(new String[variantFiles.size()]), 
-                    output, ref);
+                    output, ref, false);
             context.getCounter(HalvadeCounters.TOOLS_GATK).increment(1);
         } else if (variantFiles.size() == 1) {
             output = variantFiles.get(0);
@@ -38,10 +38,13 @@ public class RnaGATKReducer extends GATKReducer {
         String annotatedSnps = tmpFileBase + "-annotated.vcf";
         
         boolean useElPrep = HalvadeConf.getUseElPrep(context.getConfiguration());
+        boolean useJVMPrep = HalvadeConf.getUseJVMPreprocessing(context.getConfiguration());
         ChromosomeRange r = new ChromosomeRange();
         SAMRecordIterator SAMit = new SAMRecordIterator(values.iterator(), header, r);
         
-        if(useElPrep && isFirstAttempt)
+        if(useJVMPrep && isFirstAttempt)
+            jvmPreprocess(context, SAMit, preprocess);
+        else if(useElPrep && isFirstAttempt)
             elPrepPreprocess(context, tools, SAMit, preprocess);
         else {
             if(!isFirstAttempt) Logger.DEBUG("attempt " + taskId + ", preprocessing with Picard for smaller peak memory");
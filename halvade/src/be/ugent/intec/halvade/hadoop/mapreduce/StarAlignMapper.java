@@ -17,6 +17,7 @@
 
 package be.ugent.intec.halvade.hadoop.mapreduce;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqRecord;
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
 import be.ugent.intec.halvade.tools.STARInstance;
 import be.ugent.intec.halvade.utils.Logger;
@@ -24,7 +25,6 @@ import fi.tkk.ics.hadoop.bam.SAMRecordWritable;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
 
 /**
  *
@@ -33,9 +33,9 @@ import org.apache.hadoop.io.Text;
 public class StarAlignMapper extends HalvadeMapper<ChromosomeRegion, SAMRecordWritable> {
 
     @Override
-    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+    protected void map(LongWritable key, FastqRecord value, Context context) throws IOException, InterruptedException {
         super.map(key, value, context);
-        ((STARInstance)instance).feedLine(value.toString(), count, (readcount % 2 + 1));
+        ((STARInstance)instance).feedRead(value);
     }
 
     @Override
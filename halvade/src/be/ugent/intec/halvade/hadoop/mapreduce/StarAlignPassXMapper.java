@@ -6,6 +6,7 @@
 
 package be.ugent.intec.halvade.hadoop.mapreduce;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqRecord;
 import be.ugent.intec.halvade.hadoop.datatypes.GenomeSJ;
 import be.ugent.intec.halvade.tools.STARInstance;
 import be.ugent.intec.halvade.utils.HalvadeConf;
@@ -49,9 +50,9 @@ public class StarAlignPassXMapper  extends HalvadeMapper<GenomeSJ, Text> {
     }
     
     @Override
-    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+    protected void map(LongWritable key, FastqRecord value, Context context) throws IOException, InterruptedException {
         super.map(key, value, context);
-        ((STARInstance)instance).feedLine(value.toString(), count, readcount % 2);
+        ((STARInstance)instance).feedRead(value);
     }
 
     @Override
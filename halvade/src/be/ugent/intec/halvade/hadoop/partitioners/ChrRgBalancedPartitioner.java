@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.partitioners;
+
+import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import fi.tkk.ics.hadoop.bam.SAMRecordWritable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ *
+ * @author ddecap
+ */
+public class ChrRgBalancedPartitioner extends Partitioner<ChromosomeRegion, SAMRecordWritable> implements Configurable { 
+    protected Configuration conf;
+    protected int[] assignment;
+    
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        assignment = HalvadeConf.getRegionAssignment(conf);
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
+    
+    @Override
+    public int getPartition(ChromosomeRegion key, SAMRecordWritable value, int numReduceTasks) {
+        int rn = key.getReduceNumber();
+        if(assignment != null && rn < assignment.length)
+            return assignment[rn] % numReduceTasks;
+        return rn % numReduceTasks;
+    }
+    
+    /*
+     * longest processing time first: the heaviest region goes to the reducer 
+     * with the lowest expected load, ties go to the reducer with the fewest regions
+     */
+    public static int[] assignRegions(final double[] expectedReads, int reducers) {
+        int[] assigned = new int[expectedReads.length];
+        Integer[] order = new Integer[expectedReads.length];
+        for(int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(expectedReads[b], expectedReads[a]);
+            }
+        });
+        final double[] load = new double[reducers];
+        final int[] regions = new int[reducers];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(reducers, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Double.compare(load[a], load[b]);
+                if(c == 0) c = Integer.compare(regions[a], regions[b]);
+                if(c == 0) c = Integer.compare(a, b);
+                return c;
+            }
+        });
+        for(int i = 0; i < reducers; i++)
+            queue.add(i);
+        for(Integer region : order) {
+            int reducer = queue.poll();
+            assigned[region] = reducer;
+            load[reducer] += expectedReads[region];
+            regions[reducer]++;
+            queue.add(reducer);
+        }
+        return assigned;
+    }
+    
+    public static double getMaxLoad(double[] expectedReads, int[] assigned, int reducers) {
+        double[] load = new double[reducers];
+        for(int i = 0; i < expectedReads.length; i++)
+            load[assigned[i]] += expectedReads[i];
+        double max = 0;
+        for(double l : load)
+            max = Math.max(max, l);
+        return max;
+    }
+}
@@ -36,4 +36,11 @@ public class ChrRgGroupingComparator extends WritableComparator {
         ChromosomeRegion r2 = (ChromosomeRegion) b;
         return r1.getReduceNumber() - r2.getReduceNumber();
     }
+
+    // only the reduceNumber, the first variable length int of the serialized key
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        return compareBytes(b1, s1, ChromosomeRegion.getOrderedVIntSize(b1[s1]), 
+                b2, s2, ChromosomeRegion.getOrderedVIntSize(b2[s2]));
+    }
 }
\ No newline at end of file
@@ -43,4 +43,13 @@ public class ChrRgSortComparator  extends WritableComparator {
         } else
             return r1.getReduceNumber() - r2.getReduceNumber();  
     }
+
+    /*
+     * the serialized keys sort the same as reduceNumber, chromosome, position 
+     * so the bytes can be compared directly
+     */
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        return compareBytes(b1, s1, l1, b2, s2, l2);
+    }
 }
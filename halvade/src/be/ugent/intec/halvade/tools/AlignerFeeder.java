@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.tools;
+
+import be.ugent.intec.halvade.utils.Logger;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ *
+ * @author ddecap
+ */
+public class AlignerFeeder extends Thread {
+    /*
+     * collects reads in a fixed number of reusable buffers and writes the full
+     * buffers to the aligner on this thread, so reading the input overlaps with
+     * writing to the aligner. if all buffers are full the mapper blocks.
+     */
+    private static class Batch {
+        byte[] bytes;
+        int length;
+        
+        Batch(int size) {
+            bytes = new byte[size];
+            length = 0;
+        }
+    }
+    private static final Batch LAST_BATCH = new Batch(0);
+    private final OutputStream out;
+    private final ArrayBlockingQueue<Batch> free;
+    private final ArrayBlockingQueue<Batch> full;
+    private Batch current;
+    private volatile IOException error;
+    private long producerWait, consumerWait; // in ns
+    private long bytesWritten;
+
+    public AlignerFeeder(OutputStream out, int buffers, int bufferSize) {
+        this.out = out;
+        free = new ArrayBlockingQueue<>(buffers);
+        full = new ArrayBlockingQueue<>(buffers + 1);
+        for(int i = 0; i < buffers - 1; i++)
+            free.add(new Batch(bufferSize));
+        current = new Batch(bufferSize);
+        producerWait = 0;
+        consumerWait = 0;
+        bytesWritten = 0;
+        setName("AlignerFeeder");
+        setDaemon(true);
+    }
+    
+    public void write(byte[] bytes, int offset, int length) throws IOException, InterruptedException {
+        while(length > 0) {
+            int n = Math.min(length, current.bytes.length - current.length);
+            System.arraycopy(bytes, offset, current.bytes, current.length, n);
+            current.length += n;
+            offset += n;
+            length -= n;
+            if(current.length == current.bytes.length)
+                nextBatch();
+        }
+    }
+    
+    private void nextBatch() throws IOException, InterruptedException {
+        checkError();
+        full.put(current);
+        long start = System.nanoTime();
+        current = free.take();
+        producerWait += System.nanoTime() - start;
+    }
+    
+    private void checkError() throws IOException {
+        if(error != null)
+            throw new IOException("Error when writing to the aligner: " + error.getMessage(), error);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(true) {
+                long start = System.nanoTime();
+                Batch batch = full.take();
+                consumerWait += System.nanoTime() - start;
+                if(batch == LAST_BATCH) 
+                    break;
+                if(error == null) {
+                    try {
+                        out.write(batch.bytes, 0, batch.length);
+                        bytesWritten += batch.length;
+                    } catch (IOException ex) {
+                        // keep recycling buffers so the mapper doesn't block
+                        Logger.EXCEPTION(ex);
+                        error = ex;
+                    }
+                }
+                batch.length = 0;
+                free.put(batch);
+            }
+        } catch (InterruptedException ex) {
+            Logger.EXCEPTION(ex);
+        }
+    }
+    
+    /**
+     * writes the remaining reads and waits until everything is given to the aligner,
+     * the output stream is not closed.
+     */
+    public void finish() throws IOException, InterruptedException {
+        if(current.length > 0) {
+            checkError();
+            full.put(current);
+        }
+        full.put(LAST_BATCH);
+        join();
+        checkError();
+        Logger.DEBUG("aligner feeder wrote " + bytesWritten + " bytes, waited " 
+                + getProducerWaitTime() + " ms for free buffers and " 
+                + getConsumerWaitTime() + " ms for reads");
+    }
+    
+    // time in ms the mapper waited for a free buffer
+    public long getProducerWaitTime() {
+        return producerWait / 1000000;
+    }
+    
+    // time in ms this thread waited for a full buffer
+    public long getConsumerWaitTime() {
+        return consumerWait / 1000000;
+    }
+}
@@ -19,6 +19,7 @@ package be.ugent.intec.halvade.tools;
 
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
 import be.ugent.intec.halvade.hadoop.datatypes.GenomeSJ;
+import be.ugent.intec.halvade.hadoop.datatypes.SlimSAMRecordWritable;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
 import be.ugent.intec.halvade.utils.ChromosomeSplitter;
 import be.ugent.intec.halvade.utils.Logger;
@@ -58,13 +59,21 @@ public abstract class AlignerInstance {
     protected boolean keepChrSplitPairs;
     protected boolean keep = false;
     protected ChromosomeSplitter splitter;
+    protected int[] readKeys = new int[4];
+    protected int[] mergedKeys = new int[4];
     protected HalvadeHeartBeat hhb;
+    protected AlignerFeeder feeder;
+    protected static final int FEEDER_BUFFER_SIZE = 1024*1024;
     
     
     protected AlignerInstance(Mapper.Context context, String bin) throws IOException {
         AlignerInstance.context = context;
         header = null;
-        writableRecord = new SAMRecordWritable();
+        String[] shuffleTags = HalvadeConf.getShuffleTags(context.getConfiguration());
+        if(shuffleTags != null)
+            writableRecord = new SlimSAMRecordWritable(shuffleTags);
+        else
+            writableRecord = new SAMRecordWritable();
         writableRegion = new ChromosomeRegion();
         writeableCompactRegion = new GenomeSJ();
         stub = new Text();
@@ -79,7 +88,11 @@ public abstract class AlignerInstance {
         threads = HalvadeConf.getMapThreads(context.getConfiguration());
         isPaired = HalvadeConf.getIsPaired(context.getConfiguration());
         Logger.DEBUG("paired? " + isPaired);
-        splitter = new ChromosomeSplitter(HalvadeConf.getSequenceDictionary(context.getConfiguration()), minChrLength, chr);
+        String regionFile = HalvadeConf.getRegionFile(context.getConfiguration());
+        if(regionFile != null)
+            splitter = new ChromosomeSplitter(regionFile, context.getConfiguration());
+        else
+            splitter = new ChromosomeSplitter(HalvadeConf.getSequenceDictionary(context.getConfiguration()), minChrLength, chr);
         keepChrSplitPairs = HalvadeConf.getkeepChrSplitPairs(context.getConfiguration());
         keep = HalvadeConf.getKeepFiles(context.getConfiguration());
     }
@@ -94,6 +107,100 @@ public abstract class AlignerInstance {
         return 0;
     }
     
+    protected int feedBytes(byte[] bytes, int offset, int length, ProcessBuilderWrapper proc) throws IOException, InterruptedException  {
+        if (proc.getState() != 1) {
+            Logger.DEBUG("writing " + length + " bytes to process with state " + proc.getState());
+            throw new IOException("Error when writing to process with current state " + proc.getState());
+        }
+        if(feeder != null)
+            feeder.write(bytes, offset, length);
+        else
+            proc.getSTDINByteStream().write(bytes, offset, length);
+        return 0;
+    }
+    
+    protected void startFeeder(ProcessBuilderWrapper proc) {
+        int buffers = HalvadeConf.getAlignerFeederBuffers(context.getConfiguration());
+        if(buffers > 0) {
+            Logger.DEBUG("feeding aligner with " + buffers + " buffers");
+            feeder = new AlignerFeeder(proc.getSTDINByteStream(), buffers, FEEDER_BUFFER_SIZE);
+            feeder.start();
+        }
+    }
+    
+    protected void finishFeeder() throws IOException, InterruptedException {
+        if(feeder != null) {
+            feeder.finish();
+            context.getCounter(HalvadeCounters.TIME_FEEDER_WAIT_ALIGNER).increment(feeder.getProducerWaitTime());
+            context.getCounter(HalvadeCounters.TIME_FEEDER_WAIT_INPUT).increment(feeder.getConsumerWaitTime());
+            feeder = null;
+        }
+    }
+    
+    public static final int SAM_LINE_KEEP = 0;
+    public static final int SAM_LINE_UNMAPPED = 1;
+    public static final int SAM_LINE_DIFF_CHR = 2;
+    /*
+     * checks the flag and reference columns of a SAM line so reads that won't 
+     * be written to the context can be dropped without parsing the full line
+     * anything unexpected is kept so the parser can handle it
+     */
+    public int filterSAMLine(String line) {
+        if(header == null)
+            return SAM_LINE_KEEP;
+        int flagStart = line.indexOf('\t') + 1;
+        int flagEnd = line.indexOf('\t', flagStart);
+        if(flagStart == 0 || flagEnd <= flagStart)
+            return SAM_LINE_KEEP;
+        int flag = 0;
+        for(int i = flagStart; i < flagEnd; i++) {
+            char c = line.charAt(i);
+            if(c < '0' || c > '9')
+                return SAM_LINE_KEEP;
+            flag = flag * 10 + (c - '0');
+        }
+        if((flag & 0x4) != 0)
+            return SAM_LINE_UNMAPPED;
+        if(!isPaired)
+            return SAM_LINE_KEEP;
+        int rnameEnd = line.indexOf('\t', flagEnd + 1);
+        // skip POS, MAPQ and CIGAR
+        int rnextStart = rnameEnd;
+        for(int i = 0; i < 3 && rnextStart >= 0; i++)
+            rnextStart = line.indexOf('\t', rnextStart + 1);
+        if(rnameEnd < 0 || rnextStart < 0)
+            return SAM_LINE_KEEP;
+        rnextStart++;
+        int rnextEnd = line.indexOf('\t', rnextStart);
+        if(rnextEnd < 0)
+            return SAM_LINE_KEEP;
+        String rname = line.substring(flagEnd + 1, rnameEnd);
+        int read1Ref = getReferenceIndex(rname);
+        int read2Ref;
+        if(rnextEnd - rnextStart == 1 && line.charAt(rnextStart) == '=')
+            read2Ref = read1Ref;
+        else
+            read2Ref = getReferenceIndex(line.substring(rnextStart, rnextEnd));
+        if(read1Ref == -2 || read2Ref == -2)
+            return SAM_LINE_KEEP;
+        if((read1Ref == read2Ref || keepChrSplitPairs) && (read1Ref > 0 || read2Ref > 0))
+            return SAM_LINE_KEEP;
+        return SAM_LINE_DIFF_CHR;
+    }
+    
+    // returns -2 if the name is not in the header
+    private int getReferenceIndex(String name) {
+        if(name.equals("*"))
+            return -1;
+        int index = header.getSequenceIndex(name);
+        return index < 0 ? -2 : index;
+    }
+    
+    public void countFilteredReads(long unmapped, long diffChr) {
+        context.getCounter(HalvadeCounters.OUT_UNMAPPED_READS).increment(unmapped);
+        context.getCounter(HalvadeCounters.OUT_DIFF_CHR_READS).increment(diffChr);
+    }
+    
     public int writePairedSAMRecordToContext(SAMRecord sam, boolean useCompact) throws IOException, InterruptedException {
         int count = 0;
         int read1Ref = sam.getReferenceIndex();
@@ -101,55 +208,31 @@ public abstract class AlignerInstance {
         if (!sam.getReadUnmappedFlag() && (read1Ref == read2Ref || keepChrSplitPairs) && (read1Ref > 0 || read2Ref > 0)) {
             context.getCounter(HalvadeCounters.OUT_BWA_READS).increment(1);
             writableRecord.set(sam);
-            int[] keys = new int[4];
             int readLength = sam.getReadLength();
             int beginpos1 = sam.getAlignmentStart();
             int beginpos2 = sam.getMateAlignmentStart();
-            int keyrange_start = 0;
-            int keyrange_end = 4;
-            if(read1Ref > 0) {
-                keys[0] = splitter.getKey(splitter.getRegion(beginpos1, read1Ref), read1Ref);
-                if(splitter.checkUpperBound(beginpos1 + readLength, read1Ref)) // check if it goes out the chr range
-                    keys[1] = splitter.getKey(splitter.getRegion(beginpos1 + readLength, read1Ref), read1Ref);
-                else 
-                    keys[1] = keys[0];
-            } else
-                keyrange_start = 2;
-            
-            if(read2Ref > 0) {
-                keys[2] = splitter.getKey(splitter.getRegion(beginpos2, read2Ref), read2Ref);
-                if(splitter.checkUpperBound(beginpos2 + readLength, read2Ref)) // check if it goes out the chr range
-                    keys[3] = splitter.getKey(splitter.getRegion(beginpos2 + readLength, read2Ref), read2Ref);
-                else 
-                    keys[3] = keys[2];
-            } else 
-                keyrange_end = 2;
-                
-            Arrays.sort(keys);
+            int keys1 = 0, keys2 = 0;
+            if(read1Ref > 0 && splitter.isOnTarget(read1Ref, beginpos1, beginpos1 + readLength)) 
+                keys1 = getKeys(read1Ref, beginpos1, beginpos1 + readLength, 0);
+            if(read2Ref > 0 && splitter.isOnTarget(read2Ref, beginpos2, beginpos2 + readLength)) 
+                keys2 = getKeys(read2Ref, beginpos2, beginpos2 + readLength, keys1);
+            int keys = mergeKeys(keys1, keys2);
             // add this read as to be sorted to all unique found keys (mate will be added when the mate is parsed)
-            if(keyrange_start != keyrange_end) {
-                if(useCompact) {
-                    writeableCompactRegion.setRegion(keys[keyrange_start], beginpos1);
-                    context.write(writeableCompactRegion, stub);
-                } else {
-                    writableRegion.setChromosomeRegion(read1Ref, beginpos1, keys[keyrange_start]);
-                    context.write(writableRegion, writableRecord);
-                }
-                count++;
-                for(int i = keyrange_start + 1; i < keyrange_end; i++) {
-                    if(keys[i] != keys[i - 1]) {
+            if(keys > 0) {
+                for(int i = 0; i < keys; i++) {
+                    if(i > 0)
                         context.getCounter(HalvadeCounters.OUT_OVERLAPPING_READS).increment(1);
-                        if(useCompact) {
-                            writeableCompactRegion.setRegion(keys[i], beginpos1);
-                            context.write(writeableCompactRegion, stub);
-                        } else {
-                            writableRegion.setChromosomeRegion(read1Ref, beginpos1, keys[i]);
-                            context.write(writableRegion, writableRecord);
-                        }
-                        count++;
+                    if(useCompact) {
+                        writeableCompactRegion.setRegion(mergedKeys[i], beginpos1);
+                        context.write(writeableCompactRegion, stub);
+                    } else {
+                        writableRegion.setChromosomeRegion(read1Ref, beginpos1, mergedKeys[i]);
+                        context.write(writableRegion, writableRecord);
                     }
+                    count++;
                 }
-            }
+            } else 
+                context.getCounter(HalvadeCounters.OUT_OFF_TARGET_READS).increment(1);
         } else {
             if(sam.getReadUnmappedFlag()) 
                 context.getCounter(HalvadeCounters.OUT_UNMAPPED_READS).increment(1);
@@ -159,13 +242,47 @@ public abstract class AlignerInstance {
         return count;
     }
     
+    /*
+     * keys of one read go in readKeys from offset on, 
+     * the buffers are reused for every record and only grow for reads that span many regions
+     */
+    private int getKeys(int ref, int start, int end, int offset) {
+        int n = splitter.getKeys(ref, start, end, readKeys, offset);
+        if(offset + n > readKeys.length) {
+            readKeys = Arrays.copyOf(readKeys, 2 * (offset + n));
+            splitter.getKeys(ref, start, end, readKeys, offset);
+        }
+        return n;
+    }
+    
+    // merges the two sorted key lists in readKeys into mergedKeys without duplicates
+    private int mergeKeys(int keys1, int keys2) {
+        if(mergedKeys.length < keys1 + keys2)
+            mergedKeys = new int[readKeys.length];
+        int i = 0, j = keys1, end = keys1 + keys2, n = 0;
+        while(i < keys1 || j < end) {
+            int key;
+            if(j >= end || (i < keys1 && readKeys[i] <= readKeys[j]))
+                key = readKeys[i++];
+            else
+                key = readKeys[j++];
+            if(n == 0 || mergedKeys[n - 1] != key)
+                mergedKeys[n++] = key;
+        }
+        return n;
+    }
+    
     public int writeSAMRecordToContext(SAMRecord sam, boolean useCompact) throws IOException, InterruptedException {
         int count = 0;
         if (!sam.getReadUnmappedFlag()){
             context.getCounter(HalvadeCounters.OUT_BWA_READS).increment(1);
-            writableRecord.set(sam);            
             int beginpos = sam.getAlignmentStart();
             int endpos = sam.getAlignmentEnd();
+            if(!splitter.isOnTarget(sam.getReferenceIndex(), beginpos, endpos)) {
+                context.getCounter(HalvadeCounters.OUT_OFF_TARGET_READS).increment(1);
+                return 0;
+            }
+            writableRecord.set(sam);            
             int beginregion = splitter.getRegion(beginpos, sam.getReferenceIndex());
             int endregion = splitter.getRegion(endpos, sam.getReferenceIndex());
             int key = splitter.getKey(beginregion, sam.getReferenceIndex());
@@ -17,6 +17,7 @@
 
 package be.ugent.intec.halvade.tools;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqRecord;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
 import be.ugent.intec.halvade.utils.CommandGenerator;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
@@ -65,6 +66,14 @@ public class BWAAlnInstance extends AlignerInstance {
         return -1;
     }
     
+    public int feedRead(FastqRecord record) throws IOException, InterruptedException  {
+        for(int i = 0; i < record.getReadCount(); i++) {
+            int res = feedLine(record.getReadString(i), i + 1);
+            if(res != 0) return res;
+        }
+        return 0;
+    }
+    
     protected String getFileName(String dir, String id, boolean isSai, int read) {
         String outFile = dir;
         if(isSai) {
@@ -173,6 +182,9 @@ public class BWAAlnInstance extends AlignerInstance {
                 getFileName(tmpdir, taskId, true, 2), 
                 getFileName(tmpdir, taskId, false, 2), 
                 isPaired, threads, customArgs);
+        if(HalvadeConf.getAlignerBamOutput(context.getConfiguration()))
+            command = CommandGenerator.pipeToUncompressedBAM(bin, command, 
+                    HalvadeConf.getCustomArgs(context.getConfiguration(), "samtools", "view"));
         samxe = new ProcessBuilderWrapper(command, bin);
         samxe.startProcess(null, System.err);     
         if(!samxe.isAlive())
@@ -17,12 +17,16 @@
 
 package be.ugent.intec.halvade.tools;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqRecord;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
 import java.io.IOException;
 import java.io.InputStream;
 import org.apache.hadoop.mapreduce.Mapper;
 import be.ugent.intec.halvade.utils.*;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.Mapper.Context;
 
 /**
@@ -34,6 +38,8 @@ public class BWAMemInstance extends AlignerInstance {
     private static BWAMemInstance instance;
     private ProcessBuilderWrapper pbw;
     private SAMStreamHandler ssh;
+    protected static final int SHMEM_EMPTY = 0;
+    protected static final String BWT_SUFFIX = ".fasta.bwt";
     /**
      * 
      * This BWA instance runs BWA from stdin (custom provided BWA is needed)
@@ -49,11 +55,19 @@ public class BWAMemInstance extends AlignerInstance {
         return feedLine(line, pbw);
     }
     
+    public int feedRead(FastqRecord record) throws IOException, InterruptedException  {
+        // the record holds the raw fastq lines including the newlines
+        return feedBytes(record.getBytes(), 0, record.getLength(), pbw);
+    }
+    
     @Override
     protected void startAligner(Mapper.Context context) throws IOException, InterruptedException {
         // make command
         String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "bwa", "mem");
         String[] command = CommandGenerator.bwaMem(bin, ref, null, null, isPaired, true, threads, customArgs);
+        if(HalvadeConf.getAlignerBamOutput(context.getConfiguration()))
+            command = CommandGenerator.pipeToUncompressedBAM(bin, command, 
+                    HalvadeConf.getCustomArgs(context.getConfiguration(), "samtools", "view"));
         pbw = new ProcessBuilderWrapper(command, bin);
         // run command
         // needs to be streamed to output otherwise the process blocks ...
@@ -61,7 +75,7 @@ public class BWAMemInstance extends AlignerInstance {
         // check if alive.
         if(!pbw.isAlive())
             throw new ProcessException("BWA mem", pbw.getExitState());
-        pbw.getSTDINWriter();
+        startFeeder(pbw);
         // make a SAMstream handler
         ssh = new SAMStreamHandler(instance, context, false);
         ssh.start();
@@ -79,6 +93,7 @@ public class BWAMemInstance extends AlignerInstance {
     @Override
     public void closeAligner() throws InterruptedException {
         try {
+            finishFeeder();
             // close the input stream
             pbw.getSTDINWriter().flush();
             pbw.getSTDINWriter().close();
@@ -94,9 +109,95 @@ public class BWAMemInstance extends AlignerInstance {
         instance = null;
     }
         
+    /*
+     * loads the index in shared memory once per node, bwa mem attaches to it when 
+     * given the same index prefix and reads the index from disk if it isn't there
+     * the lock file holds an id of the loaded index so an index kept from an 
+     * earlier job is reused or replaced if it is a different reference
+     */
+    protected void loadSharedMemoryReference(HalvadeFileLock lock) throws IOException, InterruptedException {
+        int indexId = getIndexId();
+        try {
+            lock.getLock();
+            ByteBuffer bytes = ByteBuffer.allocate(4);
+            if (lock.read(bytes) == 4) {
+                bytes.flip();
+                int loaded = bytes.getInt();
+                if(loaded == indexId) {
+                    Logger.DEBUG("bwa index has been loaded into shared memory");
+                    return;
+                } else if (loaded != SHMEM_EMPTY) {
+                    Logger.DEBUG("another bwa index is loaded into shared memory, freeing first");
+                    runShm(true);
+                }
+            }
+            if(runShm(false)) {
+                bytes.clear();
+                bytes.putInt(indexId).flip();
+                lock.forceWrite(bytes);
+            }
+        } finally {
+            lock.releaseLock();
+        }
+    }
+    
+    /*
+     * the local path differs per task with the distributed cache, so the reference on HDFS 
+     * is used, with the size and modification time of its bwt so a replaced index
+     * at the same path gets another id
+     */
+    protected int getIndexId() throws IOException {
+        String ref = HalvadeConf.getRefOnHDFS(context.getConfiguration());
+        Path bwt = new Path(ref + BWT_SUFFIX);
+        FileStatus status = bwt.getFileSystem(context.getConfiguration()).getFileStatus(bwt);
+        int id = (ref + ":" + status.getLen() + ":" + status.getModificationTime()).hashCode();
+        return id == SHMEM_EMPTY ? 1 : id;
+    }
+    
+    // running bwa processes keep their mapping of the index
+    public void unloadSharedMemoryReference(HalvadeFileLock lock) throws IOException, InterruptedException {
+        try {
+            lock.getLock();
+            runShm(true);
+            ByteBuffer bytes = ByteBuffer.allocate(4);
+            bytes.putInt(SHMEM_EMPTY).flip();
+            lock.forceWrite(bytes);
+        } finally {
+            lock.removeAndReleaseLock();
+        }
+    }
+    
+    protected boolean runShm(boolean unload) throws InterruptedException {
+        if(unload)  Logger.DEBUG("Remove bwa index from shared memory.");
+        else Logger.DEBUG("Load bwa index [" + ref + "] to shared memory");
+        String[] command = CommandGenerator.bwaShm(bin, ref, unload);
+        ProcessBuilderWrapper shm = new ProcessBuilderWrapper(command, bin);
+        shm.startProcess(System.out, System.err);
+        if(!shm.isAlive())
+            throw new ProcessException("BWA shm", shm.getExitState());
+        HalvadeHeartBeat heartbeat = new HalvadeHeartBeat(context);
+        heartbeat.start();
+        int error = shm.waitForCompletion();
+        heartbeat.jobFinished();
+        heartbeat.join();
+        context.getCounter(HalvadeCounters.TIME_BWA_REF).increment(shm.getExecutionTime());
+        if(error != 0) {
+            // bwa mem still works, it loads the index itself
+            Logger.DEBUG("bwa shm exited with " + error + ", index isn't in shared memory");
+            return false;
+        }
+        return true;
+    }
+    
     static public BWAMemInstance getBWAInstance(Mapper.Context context, String bin) throws IOException, InterruptedException, URISyntaxException {
+        return getBWAInstance(context, bin, null);
+    }
+    
+    static public BWAMemInstance getBWAInstance(Mapper.Context context, String bin, HalvadeFileLock shmemLock) throws IOException, InterruptedException, URISyntaxException {
         if(instance == null) {
             instance = new BWAMemInstance(context, bin);
+            if(shmemLock != null)
+                instance.loadSharedMemoryReference(shmemLock);
             instance.startAligner(context);
         }
         BWAMemInstance.context = context;
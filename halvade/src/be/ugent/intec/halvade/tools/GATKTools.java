@@ -96,7 +96,12 @@ public class GATKTools {
         runBaseRecalibrator(input, table, ref, knownSites, region);        
     }
             
-    public void runBaseRecalibrator(String input, String table, String ref, String[] knownSites, String region) throws InterruptedException {        
+    public void runBaseRecalibrator(String input, String table, String ref, String[] knownSites, String region) throws InterruptedException {
+        String[] inputs = {input};
+        runBaseRecalibrator(inputs, table, ref, knownSites, region);
+    }
+            
+    public void runBaseRecalibrator(String[] inputs, String table, String ref, String[] knownSites, String region) throws InterruptedException {        
         /**
          * example: from CountCovariates
          * -I input.bam -T Countcovariates -R ref -knownSites dbsnp
@@ -123,11 +128,14 @@ public class GATKTools {
             "-T", "BaseRecalibrator",
             multiThreadingTypes[1], "" + threads, // only -nct
             "-R", ref,
-            "-I", input,
             "-o", table,
             "-L", region,
             DISABLE_VCF_LOCKING};
         command.addAll(Arrays.asList(gatkcmd));
+        for(String input : inputs) {
+            command.add("-I");
+            command.add(input);
+        }
         command.addAll(Arrays.asList(covString));
         for(String knownSite : knownSites) {
             command.add("-knownSites");
@@ -313,6 +321,14 @@ public class GATKTools {
     }
 
     public void runCombineVariants(String[] inputs, String output, String ref) throws InterruptedException {
+        runCombineVariants(inputs, output, ref, true);
+    }
+    
+    /*
+     * without sitesOnly the inputs should be of the same sample, which is kept
+     * with its genotypes instead of getting a column per input file
+     */
+    public void runCombineVariants(String[] inputs, String output, String ref, boolean sitesOnly) throws InterruptedException {
         /**
          *  java -Xmx2g -jar GenomeAnalysisTK.jar \
          *  -R ref.fasta \
@@ -329,9 +345,16 @@ public class GATKTools {
             "-T", "CombineVariants",
             multiThreadingTypes[0], "" + threads,
             "-R", ref,
-            "-o", output, "-sites_only",
-            "-genotypeMergeOptions", "UNIQUIFY"};
+            "-o", output};
         command.addAll(Arrays.asList(gatkcmd));
+        if(sitesOnly) {
+            command.add("-sites_only");
+            command.add("-genotypeMergeOptions");
+            command.add("UNIQUIFY");
+        } else {
+            command.add("-genotypeMergeOptions");
+            command.add("UNSORTED");
+        }
         if(inputs != null) {
             for(String input : inputs) {
                 command.add("--variant");
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.tools;
+
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import be.ugent.intec.halvade.utils.Logger;
+import be.ugent.intec.halvade.utils.SAMRecordIterator;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import net.sf.picard.util.CigarUtil;
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTag;
+import org.apache.hadoop.mapreduce.Reducer;
+
+/**
+ *
+ * @author ddecap
+ */
+public class InMemoryPreprocessor {
+    /*
+     * does what CleanSam, MarkDuplicates and AddOrReplaceReadGroups do, in one 
+     * pass over the coordinate sorted reads of a region and without leaving the jvm:
+     *  - reads beyond the end of the reference are soft clipped, unmapped reads get mapq 0
+     *  - duplicates are marked like MarkDuplicates, on the unclipped 5' position
+     *    and strand of both ends for pairs and of the read itself for fragments,
+     *    the read or pair with the highest sum of base qualities is kept
+     *  - every read gets the one read group that replaces those in the header
+     * all reads of the region are kept in memory, the output is one indexed bam
+     */
+    protected static final int MIN_BASE_QUALITY = 15;
+    protected static final int PROGRESS_INTERVAL = 100000;
+    protected Reducer.Context context;
+    protected SAMFileHeader header;
+    protected String readGroup;
+    protected ArrayList<SAMRecord> records;
+    protected int clipped;
+    protected int duplicates;
+
+    public InMemoryPreprocessor(Reducer.Context context, SAMFileHeader header, SAMReadGroupRecord readGroup) {
+        this.context = context;
+        this.header = header;
+        this.readGroup = readGroup.getId();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        header.setReadGroups(Collections.singletonList(readGroup));
+        records = new ArrayList<>();
+    }
+    
+    public int preprocess(SAMRecordIterator input, String output) {
+        long startTime = System.currentTimeMillis();
+        clipped = 0;
+        duplicates = 0;
+        SAMRecord sam;
+        while(input.hasNext()) {
+            sam = input.next();
+            sam.setHeader(header);
+            clean(sam);
+            sam.setAttribute(SAMTag.RG.name(), readGroup);
+            records.add(sam);
+            if(records.size() % PROGRESS_INTERVAL == 0)
+                context.progress();
+        }
+        int reads = input.getCount();
+        markDuplicates();
+        
+        SAMFileWriterFactory factory = new SAMFileWriterFactory();
+        factory.setCreateIndex(true);
+        SAMFileWriter writer = factory.makeBAMWriter(header, true, new File(output));
+        for(int i = 0; i < records.size(); i++) {
+            writer.addAlignment(records.get(i));
+            if(i % PROGRESS_INTERVAL == 0)
+                context.progress();
+        }
+        writer.close();
+        records.clear();
+        
+        long estimatedTime = System.currentTimeMillis() - startTime;
+        Logger.DEBUG("clipped " + clipped + " reads, marked " + duplicates + " duplicates in " + reads + " reads");
+        Logger.DEBUG("estimated time: " + estimatedTime / 1000);
+        context.getCounter(HalvadeCounters.TIME_JVM_PREPROCESS).increment(estimatedTime);
+        return reads;
+    }
+    
+    protected void clean(SAMRecord sam) {
+        if(sam.getReadUnmappedFlag()) {
+            sam.setMappingQuality(0);
+        } else {
+            SAMSequenceRecord seq = header.getSequence(sam.getReferenceIndex());
+            if(sam.getAlignmentEnd() > seq.getSequenceLength()) {
+                // 1-based position in the read of the first base to clip
+                int clipFrom = seq.getSequenceLength() - sam.getAlignmentStart() + 1;
+                List<CigarElement> elements = CigarUtil.softClipEndOfRead(clipFrom, sam.getCigar().getCigarElements());
+                sam.setCigar(new Cigar(elements));
+                clipped++;
+            }
+        }
+    }
+    
+    /*
+     * an end is packed as reference index, unclipped 5' position and strand,
+     * a pair is keyed on both ends with the lowest end first
+     */
+    protected static long getEnd(SAMRecord sam) {
+        boolean reverse = sam.getReadNegativeStrandFlag();
+        int pos = reverse ? sam.getUnclippedEnd() : sam.getUnclippedStart();
+        return ((long)sam.getReferenceIndex() << 33) | ((pos & 0xffffffffL) << 1) | (reverse ? 1 : 0);
+    }
+    
+    protected static int getScore(SAMRecord sam) {
+        int score = 0;
+        for(byte q : sam.getBaseQualities()) {
+            if(q >= MIN_BASE_QUALITY)
+                score += q;
+        }
+        return score;
+    }
+    
+    protected static class PairKey {
+        protected final long first, second;
+
+        public PairKey(long end1, long end2) {
+            first = Math.min(end1, end2);
+            second = Math.max(end1, end2);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof PairKey)) return false;
+            PairKey k = (PairKey)o;
+            return first == k.first && second == k.second;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = first * 31 + second;
+            return (int)(h ^ (h >>> 32));
+        }
+    }
+    
+    protected void markDuplicate(int index) {
+        records.get(index).setDuplicateReadFlag(true);
+        duplicates++;
+    }
+    
+    protected void markDuplicates() {
+        // best fragment per end as {index, score}, best pair as {index1, index2, score}
+        HashMap<Long, int[]> fragments = new HashMap<>();
+        HashSet<Long> pairedEnds = new HashSet<>();
+        HashMap<PairKey, int[]> pairs = new HashMap<>();
+        // first mate seen as {index, score}
+        HashMap<String, int[]> waitingMates = new HashMap<>();
+        
+        for(int i = 0; i < records.size(); i++) {
+            SAMRecord sam = records.get(i);
+            sam.setDuplicateReadFlag(false);
+            if(sam.getReadUnmappedFlag() || sam.isSecondaryOrSupplementary())
+                continue;
+            long end = getEnd(sam);
+            int score = getScore(sam);
+            if(sam.getReadPairedFlag() && !sam.getMateUnmappedFlag()) {
+                pairedEnds.add(end);
+                int[] mate = waitingMates.remove(sam.getReadName());
+                if(mate == null) {
+                    waitingMates.put(sam.getReadName(), new int[] {i, score});
+                } else {
+                    PairKey key = new PairKey(getEnd(records.get(mate[0])), end);
+                    int[] candidate = new int[] {mate[0], i, mate[1] + score};
+                    int[] best = pairs.get(key);
+                    if(best == null) {
+                        pairs.put(key, candidate);
+                    } else if(candidate[2] > best[2]) {
+                        markDuplicate(best[0]);
+                        markDuplicate(best[1]);
+                        pairs.put(key, candidate);
+                    } else {
+                        markDuplicate(candidate[0]);
+                        markDuplicate(candidate[1]);
+                    }
+                }
+            } else {
+                int[] best = fragments.get(end);
+                if(best == null) {
+                    fragments.put(end, new int[] {i, score});
+                } else if(score > best[1]) {
+                    markDuplicate(best[0]);
+                    best[0] = i;
+                    best[1] = score;
+                } else {
+                    markDuplicate(i);
+                }
+            }
+            if(i % PROGRESS_INTERVAL == 0)
+                context.progress();
+        }
+        // a fragment at the same position as a pair is always a duplicate
+        for(Long end : pairedEnds) {
+            int[] best = fragments.get(end);
+            if(best != null)
+                markDuplicate(best[0]);
+        }
+    }
+}
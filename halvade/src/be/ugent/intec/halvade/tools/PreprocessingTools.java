@@ -25,18 +25,29 @@ import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.ProcessBuilderWrapper;
 import be.ugent.intec.halvade.utils.SAMRecordIterator;
+import be.ugent.intec.halvade.utils.SAMTextEncoder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
@@ -51,6 +62,7 @@ import org.apache.hadoop.mapreduce.Reducer;
 public class PreprocessingTools {    
     String bin;
     private int bufferSize = 8*1024;
+    private static final int TMP_BAM_COMPRESSION = 1;
     Reducer.Context context = null;
     String java;
     String mem = "-Xmx2g";
@@ -186,15 +198,65 @@ public class PreprocessingTools {
         return reads;
     }
         
-    public int streamElPrep(Reducer.Context context, String output, String rg, 
-            int threads, SAMRecordIterator SAMit, 
+    /*
+     * elPrep reads the records from stdin and writes sam to stdout, which is 
+     * converted to an indexed bam in a separate thread so no sam file is written
+     */
+    public int streamElPrep(Reducer.Context context, final String output, String rg, 
+            final int threads, SAMRecordIterator SAMit, 
             SAMFileHeader header, String dictFile) throws InterruptedException, IOException, QualityException {
         long startTime = System.currentTimeMillis();
         String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "elprep", "");  
-        String[] command = CommandGenerator.elPrep(bin, "/dev/stdin", output, threads, true, rg, null, customArgs);
+        String[] command = CommandGenerator.elPrep(bin, "/dev/stdin", "/dev/stdout", threads, true, rg, null, customArgs);
 //        runProcessAndWait(command);
         ProcessBuilderWrapper builder = new ProcessBuilderWrapper(command, null);
-        builder.startProcess(true);        
+        builder.startProcess(null, System.err);
+        final InputStream elPrepOutput = new BufferedInputStream(builder.getSTDOUTStream(), bufferSize);
+        ExecutorService converter = Executors.newSingleThreadExecutor();
+        Future<Void> bam = converter.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, InterruptedException {
+                // closing the pipe on failure stops elPrep instead of blocking it
+                try (InputStream is = elPrepOutput) {
+                    convertSAMToIndexedBAM(is, output, threads);
+                }
+                return null;
+            }
+        });
+        try {
+            try {
+                writeElPrepInput(builder, SAMit, header);
+            } catch (IOException ex) {
+                // a failed conversion closes the pipe and stops elPrep, report that failure instead
+                Logger.DEBUG("writing to elPrep failed: " + ex.getMessage());
+                bam.get();
+                throw ex;
+            }
+            int error = builder.waitForCompletion();
+            if(error != 0)
+                throw new ProcessException("elPrep", error);
+            bam.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            Logger.EXCEPTION(cause instanceof Exception ? (Exception)cause : ex);
+            if(cause instanceof ProcessException)
+                throw (ProcessException)cause;
+            ProcessException pe = new ProcessException("SAM to BAM conversion of elPrep output", -1);
+            pe.initCause(cause);
+            throw pe;
+        } finally {
+            converter.shutdownNow();
+        }
+        int reads = SAMit.getCount();
+        long estimatedTime = System.currentTimeMillis() - startTime;
+        Logger.DEBUG("estimated time: " + estimatedTime / 1000);
+        if(context != null)
+            context.getCounter(HalvadeCounters.TIME_ELPREP).increment(estimatedTime);
+        return reads;
+    }
+    
+    protected void writeElPrepInput(ProcessBuilderWrapper builder, SAMRecordIterator SAMit, 
+            SAMFileHeader header) throws IOException {
         BufferedWriter localWriter = builder.getSTDINWriter();
         
         // write header
@@ -202,32 +264,83 @@ public class PreprocessingTools {
         new SAMTextHeaderCodec().encode(headerTextBuffer, header);
         final String headerText = headerTextBuffer.toString();
         localWriter.write(headerText, 0, headerText.length());
+        localWriter.flush();
         
-        
+        // records are encoded as sam text straight into the stdin byte buffer
+        BufferedOutputStream localStream = builder.getSTDINByteStream();
+        SAMTextEncoder encoder = new SAMTextEncoder();
         SAMRecord sam;
         while(SAMit.hasNext()) {
             sam = SAMit.next();
-            String samString = sam.getSAMString();
-            localWriter.write(samString, 0, samString.length());
+            encoder.encode(sam);
+            encoder.writeTo(localStream);
         }
-        int reads = SAMit.getCount();
-        localWriter.flush();
+        localStream.flush();
         localWriter.close();
-                
+    }
+    
+    /*
+     * converts coordinate sorted sam to an indexed bam. with more than one thread 
+     * samtools compresses the bam with all threads and indexes it afterwards, with
+     * one thread the jvm writes the bam and builds the index while writing. 
+     * the bam is only read once by gatk on local disk so the jvm uses the fastest
+     * compression level
+     */
+    public void convertSAMToIndexedBAM(String input, String output, int threads) throws IOException, InterruptedException {
+        try (InputStream is = new FileInputStream(input)) {
+            convertSAMToIndexedBAM(is, output, threads);
+        }
+    }
+    
+    public void convertSAMToIndexedBAM(InputStream input, String output, int threads) throws IOException, InterruptedException {
+        if(threads > 1) 
+            callSAMToIndexedBAM(input, output, threads);
+        else
+            writeIndexedBAM(input, output);
+    }
+    
+    protected void callSAMToIndexedBAM(InputStream input, String output, int threads) throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "samtools", "view");  
+        String[] command = CommandGenerator.SAMToolsView(bin, "-", output, threads, customArgs);
+        ProcessBuilderWrapper builder = new ProcessBuilderWrapper(command, null);
+        builder.startProcess(null, System.err);
+        try (OutputStream samtoolsInput = builder.getSTDINByteStream()) {
+            byte[] bytes = new byte[bufferSize];
+            int read;
+            while((read = input.read(bytes)) != -1) 
+                samtoolsInput.write(bytes, 0, read);
+        }
         int error = builder.waitForCompletion();
         if(error != 0)
-            throw new ProcessException("elPrep", error);
+            throw new ProcessException("SAMtools view", error);
+        runProcessAndWait("SAMtools index", CommandGenerator.SAMToolsIndex(bin, output, output.replaceAll(".bam", ".bai")));
         long estimatedTime = System.currentTimeMillis() - startTime;
         Logger.DEBUG("estimated time: " + estimatedTime / 1000);
         if(context != null)
-            context.getCounter(HalvadeCounters.TIME_ELPREP).increment(estimatedTime);
-        return reads;
+            context.getCounter(HalvadeCounters.TIME_SAMTOBAM).increment(estimatedTime);
     }
     
-    public void callSAMToBAM(String input, String output, int threads) throws InterruptedException {
-        String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "samtools", "view");  
-        String[] command = CommandGenerator.SAMToolsView(bin, input, output, threads, customArgs);
-        long estimatedTime = runProcessAndWait("SAMtools view", command); 
+    protected void writeIndexedBAM(InputStream input, String output) {
+        long startTime = System.currentTimeMillis();
+        SAMFileReader reader = new SAMFileReader(input, false);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.LENIENT);
+        SAMFileHeader header = reader.getFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        SAMFileWriterFactory factory = new SAMFileWriterFactory();
+        factory.setCreateIndex(true);
+        SAMFileWriter writer = factory.makeBAMWriter(header, true, new File(output), TMP_BAM_COMPRESSION);
+        int count = 0;
+        for(SAMRecord sam : reader) {
+            writer.addAlignment(sam);
+            count++;
+            if(context != null && count % 100000 == 0)
+                context.progress();
+        }
+        writer.close();
+        reader.close();
+        long estimatedTime = System.currentTimeMillis() - startTime;
+        Logger.DEBUG("estimated time: " + estimatedTime / 1000);
         if(context != null)
             context.getCounter(HalvadeCounters.TIME_SAMTOBAM).increment(estimatedTime);
     }
@@ -257,29 +370,9 @@ public class PreprocessingTools {
         return Arrays.copyOf(ObjectList,ObjectList.length,String[].class);        
     }
     
-    public int runBuildBamIndex(String input) throws InterruptedException {
-        String tool;
-        if(bin.endsWith("/")) 
-            tool = bin + PicardTools[0];
-        else
-            tool = bin + "/" + PicardTools[0];     
-              
-        ArrayList<String> command = new ArrayList<>();
-        command.add(java);
-        command.add(mem);
-        command.add("-jar");
-        command.add(tool);
-        command.add("INPUT=" + input);
-        String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "picard", "buildbamindex");  
-        command = CommandGenerator.addToCommand(command, customArgs);        
-        long estimatedTime = runProcessAndWait("Picard BuildBamIndex", GetStringVector(command));
-        if(context != null)
-            context.getCounter(HalvadeCounters.TIME_PICARD_BAI).increment(estimatedTime);
-        return 0;
-    }    
     public int runAddOrReplaceReadGroups(String input, String output,
             String RGID, String RGLB, String RGPL, 
-            String RGPU, String RGSM) throws InterruptedException {
+            String RGPU, String RGSM, boolean createIndex) throws InterruptedException {
         String tool;
         if(bin.endsWith("/")) 
             tool = bin + PicardTools[1];
@@ -297,6 +390,8 @@ public class PreprocessingTools {
         command.add("RGPL=" + RGPL);
         command.add("RGPU=" + RGPU);
         command.add("RGSM=" + RGSM);                         
+        if(createIndex)
+            command.add("CREATE_INDEX=true");
         String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "picard", "addorreplacereadgroup");  
         command = CommandGenerator.addToCommand(command, customArgs);        
         long estimatedTime = runProcessAndWait("Picard AddOrReplaceReadGroup", GetStringVector(command));
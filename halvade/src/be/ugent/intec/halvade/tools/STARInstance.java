@@ -17,6 +17,7 @@
 
 package be.ugent.intec.halvade.tools;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqRecord;
 import be.ugent.intec.halvade.hadoop.datatypes.GenomeSJ;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
 import be.ugent.intec.halvade.utils.CommandGenerator;
@@ -68,20 +69,16 @@ public class STARInstance extends AlignerInstance {
         overhang = 0;
     }
     
-    public int feedLine(String line, int count, int read) throws IOException, InterruptedException  {
-        if(read == 1 || !isPaired) {
-            fastqFile1.write(line + "\n");
-//            return feedLine(line, star);
-        } else if (read == 0) {
-            fastqFile2.write(line + "\n");
-//            return feedLine(line, star);
-        }
-        if(count % 2 == 0) {
-            int possibleOverhang = line.length() - 1;
+    public int feedRead(FastqRecord record) throws IOException, InterruptedException  {
+        for(int i = 0; i < record.getReadCount(); i++) {
+            BufferedWriter fastqFile = (i == 0 || !isPaired) ? fastqFile1 : fastqFile2;
+            fastqFile.write(record.getReadString(i));
+            fastqFile.newLine();
+            int possibleOverhang = record.getSequenceLength(i) - 1;
             if(possibleOverhang > overhang)
                 overhang = possibleOverhang; // overhang == max read length - 1;
+            nReads++;
         }
-        nReads++;
         return 0;
     }
     
@@ -152,7 +149,8 @@ public class STARInstance extends AlignerInstance {
         String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "star", "");
         String[] command = CommandGenerator.starAlign(bin, starType, ref, starOutDir,  
                 getFileName(tmpdir, taskId, 1), getFileName(tmpdir, taskId, 2), 
-                threads, overhang, nReads / 4, customArgs);
+                threads, overhang, nReads, 
+                HalvadeConf.getAlignerBamOutput(context.getConfiguration()), customArgs);
         star = new ProcessBuilderWrapper(command, bin);
         // run command
         // needs to be streamed to output otherwise the process blocks ...
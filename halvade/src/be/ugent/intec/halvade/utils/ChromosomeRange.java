@@ -108,10 +108,49 @@ public class ChromosomeRange {
         bedWriter.close();
     }
 
+    public long getLength() {
+        long length = 0;
+        for(Range r : list)
+            length += r.alignmentEnd - r.alignmentStart + 1;
+        return length;
+    }
+    
+    /*
+     * splits the ranges in at most parts consecutive sub ranges with about 
+     * the same number of bases, a range can be cut in two
+     */
+    public ChromosomeRange[] split(int parts) {
+        long partLength = (getLength() + parts - 1) / parts;
+        ArrayList<ChromosomeRange> split = new ArrayList<>();
+        ChromosomeRange current = new ChromosomeRange();
+        long currentLength = 0;
+        for(Range r : list) {
+            int start = r.alignmentStart;
+            while(start <= r.alignmentEnd) {
+                int end = (int)Math.min(r.alignmentEnd, start + partLength - currentLength - 1);
+                current.list.add(new Range(r.sequenceName, start, end));
+                currentLength += end - start + 1;
+                start = end + 1;
+                if(currentLength >= partLength) {
+                    split.add(current);
+                    current = new ChromosomeRange();
+                    currentLength = 0;
+                }
+            }
+        }
+        if(!current.list.isEmpty())
+            split.add(current);
+        return split.toArray(new ChromosomeRange[split.size()]);
+    }
+
     public int getAlignmentEnd() {
         return list.get(list.size() - 1).alignmentEnd;
     }
 
+    public String getSequenceName() {
+        return list.get(0).sequenceName;
+    }
+
     public int getAlignmentStart() {
         return list.get(0).alignmentStart;
     }
@@ -22,7 +22,14 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import net.sf.samtools.SAMSequenceDictionary;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 
 /**
  *
@@ -33,10 +40,14 @@ public class ChromosomeSplitter {
     protected static final int[] SPECIAL_FACTOR = {4000, 200};
     protected static final double MIN_THRESHOLD = 25.0;
     protected static final double LT_FACTOR = 5.0;
+    protected static final int MIN_ADAPTIVE_REGION_LENGTH = 50000;
     protected int[] regionsPerChr;
     protected int[] regionSizePerChr;
     protected int[] chromosomeStartKey;
     protected int[] chromosomeSizes;
+    protected int[][] regionStarts; // null for chromosomes with regions of equal length
+    protected int[][] targetStarts; // null if all reads are kept
+    protected int[][] targetEnds;
     protected String chr;
 //    protected int multiplier;
     protected int regionLength;
@@ -47,14 +58,48 @@ public class ChromosomeSplitter {
         this.dict = dict;
         this.chr = chr;
         getMinRegionLength(minCount);
-        calculateRegionsPerChromosome();
+        calculateRegionsPerChromosome(null, 0);
     }
     
     public ChromosomeSplitter(SAMSequenceDictionary dict, int regionLength, String chr) throws IOException {
         this.dict = dict;
         this.regionLength = regionLength;
         this.chr = chr;
-        calculateRegionsPerChromosome();
+        calculateRegionsPerChromosome(null, 0);
+    }
+    
+    /*
+     * places the region boundaries of the large chromosomes so that every region 
+     * has about the same amount of reads in the coverage profile,
+     * chromosomes that aren't in the profile are split on length
+     */
+    public ChromosomeSplitter(SAMSequenceDictionary dict, String chr, int minCount, CoverageProfile profile) throws IOException {
+        this.dict = dict;
+        this.chr = chr;
+        getMinRegionLength(minCount);
+        double reads = 0;
+        for(String chr_ : getChromosomes())
+            reads += profile.getCount(chr_, 0, dict.getSequence(chr_).getSequenceLength());
+        calculateRegionsPerChromosome(profile, reads / minCount);
+    }
+    
+    /*
+     * exome layout: every key holds target clusters with about the same amount of target bases,
+     * boundaries are placed in the gaps between clusters and reads outside the clusters are dropped
+     */
+    public ChromosomeSplitter(SAMSequenceDictionary dict, String chr, int minCount, ExomeTargets targets) throws IOException {
+        this.dict = dict;
+        this.chr = chr;
+        getMinRegionLength(minCount);
+        calculateExomeRegions(targets, minCount);
+    }
+    
+    public ChromosomeSplitter(String filename, Configuration conf) throws IOException {
+        Path path = new Path(filename);
+        FileSystem fs = path.getFileSystem(conf);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path)))) {
+            readSplitter(br);
+        }
     }
     
     public int getKey(int region, int chromosome) {
@@ -62,9 +107,57 @@ public class ChromosomeSplitter {
     }
     
     public int getRegion(int position, int chromosome) {
+        if(regionStarts[chromosome] != null) {
+            int i = Arrays.binarySearch(regionStarts[chromosome], position);
+            return i >= 0 ? i : -i - 2;
+        }
         return position / regionSizePerChr[chromosome];
     }
     
+    /*
+     * writes the keys of all regions overlapping [start, end] to keys from offset on, in ascending order
+     * returns the number of keys, keys that don't fit in the buffer aren't written
+     */
+    public int getKeys(int chromosome, int start, int end, int[] keys, int offset) {
+        int first = getRegion(start, chromosome);
+        int last = getRegion(Math.min(end, chromosomeSizes[chromosome] - 1), chromosome);
+        if(last < first) 
+            last = first;
+        int count = last - first + 1;
+        int key = getKey(first, chromosome);
+        for(int i = 0; i < count && offset + i < keys.length; i++)
+            keys[offset + i] = key + i;
+        return count;
+    }
+    
+    public int getRegionStart(int region, int chromosome) {
+        if(regionStarts[chromosome] != null)
+            return regionStarts[chromosome][region];
+        return region * regionSizePerChr[chromosome];
+    }
+    
+    public int getRegionEnd(int region, int chromosome) {
+        if(regionStarts[chromosome] != null)
+            return region + 1 < regionStarts[chromosome].length ? regionStarts[chromosome][region + 1] : chromosomeSizes[chromosome];
+        return Math.min((region + 1) * regionSizePerChr[chromosome], chromosomeSizes[chromosome]);
+    }
+    
+    public boolean isOnTarget(int chromosome, int start, int end) {
+        if(targetStarts == null || targetStarts[chromosome] == null)
+            return true;
+        // last cluster that starts before the end
+        int i = Arrays.binarySearch(targetStarts[chromosome], end);
+        i = i >= 0 ? i : -i - 2;
+        return i >= 0 && targetEnds[chromosome][i] >= start;
+    }
+    
+    public boolean isAdaptive() {
+        for(int[] starts : regionStarts)
+            if(starts != null)
+                return true;
+        return false;
+    }
+    
     public boolean checkUpperBound(int pos, int ref) {
         return pos < chromosomeSizes[ref];
     }
@@ -84,6 +177,13 @@ public class ChromosomeSplitter {
         return chrs;
     }
     
+    private String[] getChromosomes() {
+        if(chr == null)
+            return getChromosomeNames(dict);
+        else
+            return chr.split(",");
+    }
+    
     private int checkSpecialChromsome(String chr_) {
         int factor = 1, s = 0;
         while(factor == 1 && s < SPECIAL_CHR.length){
@@ -136,11 +236,12 @@ public class ChromosomeSplitter {
         return regionLength;
     }
     
-    private void calculateRegionsPerChromosome() throws IOException {
+    private void calculateRegionsPerChromosome(CoverageProfile profile, double readsPerRegion) throws IOException {
         regionsPerChr = new int[dict.size()];
         regionSizePerChr = new int[dict.size()];
         chromosomeStartKey = new int[dict.size()];
         chromosomeSizes = new int[dict.size()];
+        regionStarts = new int[dict.size()][];
         int currentKey = 0;
         String[] chrs;
         if(chr == null) 
@@ -185,12 +286,18 @@ public class ChromosomeSplitter {
             int lenFact = checkSpecialChromsome(chr_);
             chromosomeSizes[i] = seqlen;
             if(seqlen*lenFact >= regionLength) {
-                regionsPerChr[i] = (int)Math.ceil((double)seqlen*lenFact / regionLength);
+                if(profile != null && profile.hasChromosome(chr_))
+                    regionStarts[i] = profile.getRegionStarts(chr_, seqlen, readsPerRegion, MIN_ADAPTIVE_REGION_LENGTH);
+                if(regionStarts[i] != null)
+                    regionsPerChr[i] = regionStarts[i].length;
+                else
+                    regionsPerChr[i] = (int)Math.ceil((double)seqlen*lenFact / regionLength);
                 regionCount += regionsPerChr[i];
                 Logger.DEBUG(dict.getSequence(chr_).getSequenceName() + ": " + regionsPerChr[i] + 
                     " regions [" + (dict.getSequence(chr_).getSequenceLength() / regionsPerChr[i] + 1) + "].",
                         3);
                 
+                // average size if the regions are based on coverage
                 regionSizePerChr[i] = seqlen / regionsPerChr[i] + 1;
                 chromosomeStartKey[i] = currentKey;
                 currentKey += regionsPerChr[i];
@@ -202,16 +309,138 @@ public class ChromosomeSplitter {
         be.ugent.intec.halvade.utils.Logger.DEBUG("Total regions: " + regionCount);
     }
     
+    private void calculateExomeRegions(ExomeTargets targets, int minCount) {
+        regionsPerChr = new int[dict.size()];
+        regionSizePerChr = new int[dict.size()];
+        chromosomeStartKey = new int[dict.size()];
+        chromosomeSizes = new int[dict.size()];
+        regionStarts = new int[dict.size()][];
+        targetStarts = new int[dict.size()][];
+        targetEnds = new int[dict.size()][];
+        String[] chrs = getChromosomes();
+        long totalBases = 0;
+        for(String chr_ : chrs)
+            totalBases += targets.getTargetBases(chr_);
+        double basesPerRegion = Math.max(1.0, (double)totalBases / minCount);
+        for(int i = 0; i < chrs.length; i++) {
+            chromosomeSizes[i] = dict.getSequence(chrs[i]).getSequenceLength();
+            targetStarts[i] = targets.getStarts(chrs[i]) == null ? new int[0] : targets.getStarts(chrs[i]);
+            targetEnds[i] = targets.getEnds(chrs[i]) == null ? new int[0] : targets.getEnds(chrs[i]);
+            regionsPerChr[i] = 1;
+            regionStarts[i] = new int[] {0};
+            regionSizePerChr[i] = chromosomeSizes[i] + 1;
+        }
+        
+        // combine chr with few targets, chr without targets keep key 0 but never get reads
+        int currentKey = 0;
+        long currentKeyBases = 0;
+        for(int i = 0; i < chrs.length; i++) {
+            long bases = targets.getTargetBases(chrs[i]);
+            if(bases > 0 && bases < basesPerRegion) {
+                chromosomeStartKey[i] = currentKey;
+                currentKeyBases += bases;
+                if(currentKeyBases >= basesPerRegion) {
+                    currentKey++;
+                    regionCount++;
+                    currentKeyBases = 0;
+                }
+            }
+        }
+        if(currentKeyBases > 0) {
+            currentKey++;
+            regionCount++;
+        }
+        // split the clusters of the other chr
+        for(int i = 0; i < chrs.length; i++) {
+            if(targets.getTargetBases(chrs[i]) >= basesPerRegion) {
+                ArrayList<Integer> starts = new ArrayList<>();
+                starts.add(0);
+                double bases = 0;
+                for(int t = 0; t < targetStarts[i].length; t++) {
+                    if(bases >= basesPerRegion) {
+                        starts.add((targetEnds[i][t - 1] + targetStarts[i][t]) / 2);
+                        bases = 0;
+                    }
+                    bases += targetEnds[i][t] - targetStarts[i][t];
+                }
+                regionStarts[i] = new int[starts.size()];
+                for(int r = 0; r < starts.size(); r++)
+                    regionStarts[i][r] = starts.get(r);
+                regionsPerChr[i] = starts.size();
+                regionSizePerChr[i] = chromosomeSizes[i] / regionsPerChr[i] + 1;
+                chromosomeStartKey[i] = currentKey;
+                currentKey += regionsPerChr[i];
+                regionCount += regionsPerChr[i];
+                Logger.DEBUG(chrs[i] + ": " + regionsPerChr[i] + " regions with " + targetStarts[i].length + " target clusters", 3);
+            }
+        }
+        Logger.DEBUG("Total regions: " + regionCount);
+    }
+    
+    /*
+     * expected reads per key, small chromosomes that share a key add up
+     */
+    public double[] getExpectedReads(CoverageProfile profile) {
+        double[] reads = new double[regionCount];
+        String[] chrs = getChromosomes();
+        for(int i = 0; i < chrs.length; i++) {
+            for(int r = 0; r < regionsPerChr[i]; r++) 
+                reads[getKey(r, i)] += profile.getCount(chrs[i], getRegionStart(r, i), getRegionEnd(r, i));
+        }
+        return reads;
+    }
+    
     public static void exportSplitter(int[] regionsPerChr, int[] regionSizePerChr, int[] chromosomeStartKey, int[] chromosomeSizes, String filename) {
+        exportSplitter(regionsPerChr, regionSizePerChr, chromosomeStartKey, chromosomeSizes, null, filename);
+    }
+    
+    public void exportSplitter(String filename, Configuration conf) throws IOException {
+        Path path = new Path(filename);
+        FileSystem fs = path.getFileSystem(conf);
+        try (BufferedWriter br = new BufferedWriter(new OutputStreamWriter(fs.create(path, true)))) {
+            writeSplitter(br, regionsPerChr, regionSizePerChr, chromosomeStartKey, chromosomeSizes, regionStarts, targetStarts, targetEnds);
+        }
+    }
+    
+    /*
+     * one line per chromosome: regions, region size, start key and chromosome size,
+     * chromosomes with regions based on coverage have a 5th column with the region starts,
+     * the exome layout adds a 6th column with the target clusters (start-end,... or . if none)
+     */
+    private static void writeSplitter(BufferedWriter br, int[] regionsPerChr, int[] regionSizePerChr, int[] chromosomeStartKey, 
+            int[] chromosomeSizes, int[][] regionStarts, int[][] targetStarts, int[][] targetEnds) throws IOException {
+        String line = regionsPerChr.length + "\n";
+        br.write(line, 0, line.length());
+        for(int i = 0; i < regionsPerChr.length; i++) {
+            line = regionsPerChr[i] + "\t" + regionSizePerChr[i] + "\t" + chromosomeStartKey[i] + "\t" + chromosomeSizes[i];
+            if(regionStarts != null && regionStarts[i] != null) {
+                StringBuilder sb = new StringBuilder(line).append('\t');
+                for(int j = 0; j < regionStarts[i].length; j++) {
+                    if(j > 0) sb.append(',');
+                    sb.append(regionStarts[i][j]);
+                }
+                if(targetStarts != null) {
+                    sb.append('\t');
+                    if(targetStarts[i].length == 0)
+                        sb.append('.');
+                    for(int j = 0; j < targetStarts[i].length; j++) {
+                        if(j > 0) sb.append(',');
+                        sb.append(targetStarts[i][j]).append('-').append(targetEnds[i][j]);
+                    }
+                }
+                line = sb.toString();
+            }
+            line += "\n";
+            br.write(line, 0, line.length());
+        }
+    }
+    
+    public static void exportSplitter(int[] regionsPerChr, int[] regionSizePerChr, int[] chromosomeStartKey, int[] chromosomeSizes, 
+            int[][] regionStarts, String filename) {
         BufferedWriter br = null;
         try {
             br = new BufferedWriter(new FileWriter(filename));
-            String line = regionsPerChr.length + "\n";
-            br.write(line, 0, line.length());
-            for(int i = 0; i < regionsPerChr.length; i++) {
-                line = regionsPerChr[i] + "\t" + regionSizePerChr[i] + "\t" + chromosomeStartKey[i] + "\t" + chromosomeSizes[i] + "\n";
-                br.write(line, 0, line.length());
-            }
+            writeSplitter(br, regionsPerChr, regionSizePerChr, chromosomeStartKey, chromosomeSizes, regionStarts, null, null);
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
         } finally {
@@ -229,21 +458,7 @@ public class ChromosomeSplitter {
         BufferedReader br = null;
         try {
             br = new BufferedReader(new FileReader(filename));
-            String line = br.readLine();
-            String split[];
-            int len = Integer.parseInt(line);
-            regionsPerChr = new int[len];
-            regionSizePerChr = new int[len];
-            chromosomeStartKey = new int[len];
-            chromosomeSizes = new int[len];
-            for(int i = 0; i < len; i++) {
-                line = br.readLine();
-                split = line.split("\t");
-                regionsPerChr[i] = Integer.parseInt(split[0]);
-                regionSizePerChr[i] = Integer.parseInt(split[1]);
-                chromosomeStartKey[i] = Integer.parseInt(split[2]);
-                chromosomeSizes[i] = Integer.parseInt(split[3]);
-            }
+            readSplitter(br);
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
         } finally {
@@ -256,4 +471,47 @@ public class ChromosomeSplitter {
             }
         }
     }
+    
+    private void readSplitter(BufferedReader br) throws IOException {
+        String line = br.readLine();
+        String split[];
+        int len = Integer.parseInt(line);
+        regionsPerChr = new int[len];
+        regionSizePerChr = new int[len];
+        chromosomeStartKey = new int[len];
+        chromosomeSizes = new int[len];
+        regionStarts = new int[len][];
+        targetStarts = null;
+        targetEnds = null;
+        regionCount = 0;
+        for(int i = 0; i < len; i++) {
+            line = br.readLine();
+            split = line.split("\t");
+            regionsPerChr[i] = Integer.parseInt(split[0]);
+            regionSizePerChr[i] = Integer.parseInt(split[1]);
+            chromosomeStartKey[i] = Integer.parseInt(split[2]);
+            chromosomeSizes[i] = Integer.parseInt(split[3]);
+            if(split.length > 4) {
+                String[] starts = split[4].split(",");
+                regionStarts[i] = new int[starts.length];
+                for(int j = 0; j < starts.length; j++)
+                    regionStarts[i][j] = Integer.parseInt(starts[j]);
+            }
+            if(split.length > 5) {
+                if(targetStarts == null) {
+                    targetStarts = new int[len][];
+                    targetEnds = new int[len][];
+                }
+                String[] clusters = split[5].equals(".") ? new String[0] : split[5].split(",");
+                targetStarts[i] = new int[clusters.length];
+                targetEnds[i] = new int[clusters.length];
+                for(int j = 0; j < clusters.length; j++) {
+                    int sep = clusters[j].indexOf('-');
+                    targetStarts[i][j] = Integer.parseInt(clusters[j].substring(0, sep));
+                    targetEnds[i][j] = Integer.parseInt(clusters[j].substring(sep + 1));
+                }
+            }
+            regionCount = Math.max(regionCount, chromosomeStartKey[i] + regionsPerChr[i]);
+        }
+    }
 }
@@ -54,12 +54,14 @@ public class CommandGenerator {
         "--limitIObufferSize",
         "--limitGenomeGenerateRAM",
         "--genomeSAsparseD",
-        "--limitBAMsortRAM"};
+        "--limitBAMsortRAM",
+        "--outBAMcompression"};
     private static String[] starGenomeLoad = {
         "LoadAndExit" , "Remove", "LoadAndKeep"
     };
     private static String bwaCommand[] = {"bwa", "samxe"};
-    private static String bwaTool[] = {"mem", "aln", "sampe", "samse"};
+    private static String bwaTool[] = {"mem", "aln", "sampe", "samse", "shm"};
+    private static String bwaShmOptions[] = {"-d"}; // 0: drop all indices from shared memory
     private static String bwaOptions[] = 
         {"-p", // 0: paired (interleaved file)
          "-t" // 1: number of threads
@@ -215,6 +217,45 @@ public class CommandGenerator {
         return StringArray;
     }
     
+    public static String[] SAMToolsIndex(String bin, String input, String index) {
+        ArrayList<String> command = new ArrayList<String>();
+        if(bin.endsWith("/")) 
+            command.add(bin + "samtools"); 
+        else
+            command.add(bin + "/samtools");
+        command.add("index");
+        command.add(input);
+        command.add(index);
+        Object[] ObjectList = command.toArray();
+        String[] StringArray = Arrays.copyOf(ObjectList,ObjectList.length,String[].class);
+        return StringArray;
+    }
+    
+    /*
+     * runs the command in a shell and pipes its SAM output through samtools
+     * to get uncompressed BAM records on stdout
+     */
+    public static String[] pipeToUncompressedBAM(String bin, String[] command, String customArgs) {
+        StringBuilder pipe = new StringBuilder("set -o pipefail; ");
+        for(String arg : command) 
+            pipe.append(shellQuote(arg)).append(" ");
+        pipe.append("| ");
+        if(bin.endsWith("/")) 
+            pipe.append(shellQuote(bin + "samtools")); 
+        else
+            pipe.append(shellQuote(bin + "/samtools"));
+        pipe.append(" view -Su");
+        if(customArgs != null && !customArgs.isEmpty())
+            pipe.append(" ").append(customArgs);
+        pipe.append(" -");
+        String[] StringArray = {"/bin/bash", "-c", pipe.toString()};
+        return StringArray;
+    }
+    
+    private static String shellQuote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+    
     public static String[] bwaMem(String bin,
             String bwaReferenceIndex, 
             String bwaReadsFile1, 
@@ -246,6 +287,22 @@ public class CommandGenerator {
         return StringArray;        
     }
     
+    public static String[] bwaShm(String bin, String bwaReferenceIndex, boolean unload) {
+        ArrayList<String> command = new ArrayList<String>();
+        if(bin.endsWith("/")) 
+            command.add(bin + bwaCommand[0]); 
+        else
+            command.add(bin + "/" + bwaCommand[0]);
+        command.add(bwaTool[4]);
+        if(unload)
+            command.add(bwaShmOptions[0]);
+        else
+            command.add(bwaReferenceIndex);
+        Object[] ObjectList = command.toArray();
+        String[] StringArray = Arrays.copyOf(ObjectList,ObjectList.length,String[].class);
+        return StringArray;        
+    }
+    
     public static String[] starGenomeLoad(String bin, String starGenomeDir, boolean unload) {
         ArrayList<String> command = new ArrayList<String>();
         if(bin.endsWith("/")) 
@@ -305,7 +362,7 @@ public class CommandGenerator {
             String outputDir,
             String readsFile1, 
             String readsFile2,
-            int numberOfThreads, int overhang, int nReads, String customArgs) {
+            int numberOfThreads, int overhang, int nReads, boolean bamOutput, String customArgs) {
         ArrayList<String> command = new ArrayList<>();
         if(bin.endsWith("/")) 
             command.add(bin + starBin); 
@@ -335,10 +392,20 @@ public class CommandGenerator {
             command.add(starOptions[9]);
             command.add(starGenomeLoad[2]);
         }
-        if(passType == STARInstance.PASS2 || passType == STARInstance.PASS1AND2) {            
-            command.add(starOptions[7]);
-            command.add("SAM");
-            command.add("Unsorted"); 
+        if(passType == STARInstance.PASS2 || passType == STARInstance.PASS1AND2) {
+            if(bamOutput) {
+                command.add(starOptions[7]);
+                command.add("BAM_Unsorted");
+                command.add(starOptions[12]);
+                command.add("BAM");
+                command.add("Unsorted");
+                command.add(starOptions[18]);
+                command.add("0");
+            } else {
+                command.add(starOptions[7]);
+                command.add("SAM");
+                command.add("Unsorted"); 
+            }
         }
         
         // for all 3 options
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+/**
+ *
+ * @author ddecap
+ */
+public class CoverageProfile {
+    /*
+     * read density of a reference, loaded from a bedGraph like file:
+     *   chr <tab> start <tab> end <tab> reads
+     * start is 0-based and end exclusive, bins of a chromosome don't overlap
+     * this can be made with bedtools genomecov -bg or from a previous run 
+     * with the same reference and capture kit, only the relative counts matter
+     */
+    protected HashMap<String, Bins> profile;
+    protected double total;
+    
+    protected static class Bins {
+        int[] start;
+        int[] end;
+        double[] count;
+    }
+    
+    public CoverageProfile() {
+        profile = new HashMap<>();
+        total = 0;
+    }
+    
+    public static CoverageProfile read(String filename, Configuration conf) throws IOException, URISyntaxException {
+        FileSystem fs = FileSystem.get(new URI(filename), conf);
+        Path path = new Path(filename);
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(path);
+        BufferedReader br;
+        if(codec != null)
+            br = new BufferedReader(new InputStreamReader(codec.createInputStream(fs.open(path))));
+        else
+            br = new BufferedReader(new InputStreamReader(fs.open(path)));
+        HashMap<String, ArrayList<double[]>> bins = new HashMap<>();
+        try {
+            String line;
+            int lineNumber = 0;
+            while((line = br.readLine()) != null) {
+                lineNumber++;
+                if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+                    continue;
+                String[] split = line.split("\\s+");
+                if(split.length < 4)
+                    throw new IOException("invalid coverage profile line " + lineNumber + ": " + line);
+                double[] bin = new double[3];
+                try {
+                    bin[0] = Integer.parseInt(split[1]);
+                    bin[1] = Integer.parseInt(split[2]);
+                    bin[2] = Double.parseDouble(split[3]);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("invalid coverage profile line " + lineNumber + ": " + line);
+                }
+                if(bin[1] <= bin[0] || bin[2] < 0)
+                    continue;
+                ArrayList<double[]> list = bins.get(split[0]);
+                if(list == null) {
+                    list = new ArrayList<>();
+                    bins.put(split[0], list);
+                }
+                list.add(bin);
+            }
+        } finally {
+            br.close();
+        }
+        CoverageProfile cp = new CoverageProfile();
+        for(String chr : bins.keySet())
+            cp.addChromosome(chr, bins.get(chr));
+        Logger.DEBUG("coverage profile with " + cp.profile.size() + " chromosomes and " + cp.total + " reads");
+        return cp;
+    }
+    
+    protected void addChromosome(String chr, ArrayList<double[]> list) {
+        Collections.sort(list, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        Bins b = new Bins();
+        b.start = new int[list.size()];
+        b.end = new int[list.size()];
+        b.count = new double[list.size()];
+        for(int i = 0; i < list.size(); i++) {
+            b.start[i] = (int) list.get(i)[0];
+            b.end[i] = (int) list.get(i)[1];
+            b.count[i] = list.get(i)[2];
+            total += b.count[i];
+        }
+        profile.put(chr, b);
+    }
+    
+    public boolean hasChromosome(String chr) {
+        return profile.containsKey(chr);
+    }
+    
+    public double getTotal() {
+        return total;
+    }
+    
+    /*
+     * returns the expected reads in [start, end), bins that partially overlap 
+     * the interval contribute proportional to the overlap
+     */
+    public double getCount(String chr, int start, int end) {
+        Bins b = profile.get(chr);
+        if(b == null || end <= start)
+            return 0;
+        // first bin that ends after start
+        int i = Arrays.binarySearch(b.end, start);
+        i = i < 0 ? -i - 1 : i + 1;
+        double sum = 0;
+        while(i < b.start.length && b.start[i] < end) {
+            int s = Math.max(start, b.start[i]);
+            int e = Math.min(end, b.end[i]);
+            if(e > s)
+                sum += b.count[i] * (e - s) / (b.end[i] - b.start[i]);
+            i++;
+        }
+        return sum;
+    }
+    
+    /*
+     * returns the start of every region when the chromosome is cut each time 
+     * readsPerRegion reads are passed, regions are at least minLength long
+     */
+    public int[] getRegionStarts(String chr, int chrLength, double readsPerRegion, int minLength) {
+        Bins b = profile.get(chr);
+        if(b == null)
+            return null;
+        ArrayList<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        int last = 0;
+        double reads = 0;
+        double next = readsPerRegion;
+        for(int i = 0; i < b.start.length && readsPerRegion > 0; i++) {
+            double c = b.count[i];
+            while(c > 0 && reads + c >= next) {
+                int pos = b.start[i] + (int)((next - reads) / c * (b.end[i] - b.start[i]));
+                if(pos - last >= minLength && chrLength - pos >= minLength) {
+                    starts.add(pos);
+                    last = pos;
+                }
+                next += readsPerRegion;
+            }
+            reads += c;
+        }
+        int[] result = new int[starts.size()];
+        for(int i = 0; i < result.length; i++)
+            result[i] = starts.get(i);
+        return result;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+/**
+ *
+ * @author ddecap
+ */
+public class ExomeTargets {
+    /*
+     * target intervals of an exome bed file, padded and merged per chromosome
+     * so every target cluster is one sorted, non overlapping interval
+     */
+    protected HashMap<String, int[][]> targets;
+    
+    protected ExomeTargets() {
+        targets = new HashMap<>();
+    }
+    
+    public static ExomeTargets read(String filename, Configuration conf, int padding) throws IOException {
+        Path path = new Path(filename);
+        FileSystem fs = path.getFileSystem(conf);
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(path);
+        BufferedReader br;
+        if(codec != null)
+            br = new BufferedReader(new InputStreamReader(codec.createInputStream(fs.open(path))));
+        else
+            br = new BufferedReader(new InputStreamReader(fs.open(path)));
+        HashMap<String, ArrayList<int[]>> intervals = new HashMap<>();
+        try {
+            String line;
+            int lineNumber = 0;
+            while((line = br.readLine()) != null) {
+                lineNumber++;
+                if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+                    continue;
+                String[] split = line.split("\\s+");
+                if(split.length < 3)
+                    throw new IOException("invalid bed line " + lineNumber + ": " + line);
+                int[] interval = new int[2];
+                try {
+                    interval[0] = Math.max(0, Integer.parseInt(split[1]) - padding);
+                    interval[1] = Integer.parseInt(split[2]) + padding;
+                } catch (NumberFormatException ex) {
+                    throw new IOException("invalid bed line " + lineNumber + ": " + line);
+                }
+                ArrayList<int[]> list = intervals.get(split[0]);
+                if(list == null) {
+                    list = new ArrayList<>();
+                    intervals.put(split[0], list);
+                }
+                list.add(interval);
+            }
+        } finally {
+            br.close();
+        }
+        ExomeTargets et = new ExomeTargets();
+        int clusters = 0;
+        for(String chr : intervals.keySet()) {
+            et.targets.put(chr, merge(intervals.get(chr)));
+            clusters += et.targets.get(chr)[0].length;
+        }
+        Logger.DEBUG("exome bed has " + clusters + " target clusters on " + et.targets.size() + " chromosomes");
+        return et;
+    }
+    
+    protected static int[][] merge(ArrayList<int[]> list) {
+        Collections.sort(list, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+        ArrayList<int[]> merged = new ArrayList<>();
+        int[] current = null;
+        for(int[] interval : list) {
+            if(current != null && interval[0] <= current[1]) 
+                current[1] = Math.max(current[1], interval[1]);
+            else {
+                current = new int[] {interval[0], interval[1]};
+                merged.add(current);
+            }
+        }
+        int[][] result = new int[2][merged.size()];
+        for(int i = 0; i < merged.size(); i++) {
+            result[0][i] = merged.get(i)[0];
+            result[1][i] = merged.get(i)[1];
+        }
+        return result;
+    }
+    
+    // start positions of the target clusters, null if the chromosome has no targets
+    public int[] getStarts(String chr) {
+        int[][] t = targets.get(chr);
+        return t == null ? null : t[0];
+    }
+    
+    public int[] getEnds(String chr) {
+        int[][] t = targets.get(chr);
+        return t == null ? null : t[1];
+    }
+    
+    public long getTargetBases(String chr) {
+        int[][] t = targets.get(chr);
+        long bases = 0;
+        if(t != null) 
+            for(int i = 0; i < t[0].length; i++)
+                bases += t[1][i] - t[0][i];
+        return bases;
+    }
+}
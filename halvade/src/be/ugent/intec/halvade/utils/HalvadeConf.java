@@ -105,6 +105,21 @@ public class HalvadeConf {
             return false;
     }
     
+    private static final String useJVMPreprocessing = "usejvmprep";
+    public static void setUseJVMPreprocessing(Configuration conf, boolean use) {
+        if(use)
+            conf.set(useJVMPreprocessing, "true");
+        else 
+            conf.set(useJVMPreprocessing, "false");
+    }
+    public static boolean getUseJVMPreprocessing(Configuration conf) {
+        String s = conf.get(useJVMPreprocessing, "false");
+        if(s.equalsIgnoreCase("true"))
+            return true;
+        else 
+            return false;
+    }
+    
     private static final String reuseJVM = "reuseJVM";
     public static void setReuseJVM(Configuration conf, boolean val) {
         if(val)
@@ -135,6 +150,36 @@ public class HalvadeConf {
             return false;
     }
 
+    private static final String splitFastq = "splitfastq";
+    public static void setSplitFastq(Configuration conf, boolean split) {
+        if(split)
+            conf.set(splitFastq, "true");
+        else 
+            conf.set(splitFastq, "false");
+    }    
+    public static boolean getSplitFastq(Configuration conf) {
+        String s = conf.get(splitFastq);
+        if(s.equalsIgnoreCase("true"))
+            return true;
+        else 
+            return false;
+    }
+
+    private static final String alignerBam = "alignerbam";
+    public static void setAlignerBamOutput(Configuration conf, boolean bam) {
+        if(bam)
+            conf.set(alignerBam, "true");
+        else 
+            conf.set(alignerBam, "false");
+    }    
+    public static boolean getAlignerBamOutput(Configuration conf) {
+        String s = conf.get(alignerBam);
+        if(s.equalsIgnoreCase("true"))
+            return true;
+        else 
+            return false;
+    }
+
     private static final String outdir = "outputdir";
     public static void setOutDir(Configuration conf, String val) {
         if(!val.endsWith("/"))
@@ -163,6 +208,22 @@ public class HalvadeConf {
         return conf.getInt(mapThreads, 1);
     }
     
+    private static final String feederBuffers = "alignerfeederbuffers";
+    public static void setAlignerFeederBuffers(Configuration conf, int val) {
+        conf.setInt(feederBuffers, val);
+    }
+    public static int getAlignerFeederBuffers(Configuration conf) {
+        return conf.getInt(feederBuffers, 4);
+    }
+    
+    private static final String samParserThreads = "samparserthreads";
+    public static void setSAMParserThreads(Configuration conf, int val) {
+        conf.setInt(samParserThreads, val);
+    }
+    public static int getSAMParserThreads(Configuration conf) {
+        return conf.getInt(samParserThreads, 1);
+    }
+    
     private static final String reduceThreads = "reducethreads";
     public static void setReducerThreads(Configuration conf, int val) {
         conf.setInt(reduceThreads, val);
@@ -322,6 +383,110 @@ public class HalvadeConf {
         return conf.get(chrList);
     }
     
+    private static final String shuffleTags = "shuffletags";
+    public static void setShuffleTags(Configuration conf, String val) {
+        conf.set(shuffleTags, val);
+    }    
+    // returns null if all tags are kept
+    public static String[] getShuffleTags(Configuration conf) {
+        String s = conf.get(shuffleTags);
+        if(s == null)
+            return null;
+        if(s.isEmpty())
+            return new String[0];
+        return s.split(",");
+    }
+    
+    private static final String useDistributedCache = "usedistcache";
+    public static void setUseDistributedCache(Configuration conf, boolean val) {
+        if(val)
+            conf.set(useDistributedCache, "true");
+        else 
+            conf.set(useDistributedCache, "false");
+    }    
+    public static boolean getUseDistributedCache(Configuration conf) {
+        String s = conf.get(useDistributedCache, "false");
+        return s.equalsIgnoreCase("true");
+    }
+    
+    private static final String downloadThreads = "downloadthreads";
+    private static final int DEFAULT_DOWNLOAD_THREADS = 4;
+    public static void setDownloadThreads(Configuration conf, int val) {
+        conf.setInt(downloadThreads, val);
+    }    
+    public static int getDownloadThreads(Configuration conf) {
+        return conf.getInt(downloadThreads, DEFAULT_DOWNLOAD_THREADS);
+    }
+    
+    private static final String subIntervals = "subintervals";
+    public static void setSubIntervals(Configuration conf, int val) {
+        conf.setInt(subIntervals, val);
+    }    
+    public static int getSubIntervals(Configuration conf) {
+        return conf.getInt(subIntervals, 1);
+    }
+    
+    private static final String useSharedMemory = "useshmem";
+    public static void setUseSharedMemory(Configuration conf, boolean val) {
+        if(val)
+            conf.set(useSharedMemory, "true");
+        else 
+            conf.set(useSharedMemory, "false");
+    }    
+    public static boolean getUseSharedMemory(Configuration conf) {
+        String s = conf.get(useSharedMemory, "false");
+        return s.equalsIgnoreCase("true");
+    }
+    
+    private static final String keepSharedMemory = "keepshmem";
+    public static void setKeepSharedMemory(Configuration conf, boolean val) {
+        if(val)
+            conf.set(keepSharedMemory, "true");
+        else 
+            conf.set(keepSharedMemory, "false");
+    }    
+    public static boolean getKeepSharedMemory(Configuration conf) {
+        String s = conf.get(keepSharedMemory, "false");
+        return s.equalsIgnoreCase("true");
+    }
+    
+    private static final String coverageProfile = "coverageprofile";
+    public static void setCoverageProfile(Configuration conf, String val) {
+        conf.set(coverageProfile, val);
+    }    
+    public static String getCoverageProfile(Configuration conf) {
+        return conf.get(coverageProfile);
+    }
+    
+    private static final String regionFile = "regionfile";
+    public static void setRegionFile(Configuration conf, String val) {
+        conf.set(regionFile, val);
+    }    
+    public static String getRegionFile(Configuration conf) {
+        return conf.get(regionFile);
+    }
+    
+    private static final String regionAssignment = "regionassignment";
+    public static void setRegionAssignment(Configuration conf, int[] reducers) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < reducers.length; i++) {
+            if(i > 0) sb.append(',');
+            sb.append(reducers[i]);
+        }
+        conf.set(regionAssignment, sb.toString());
+    }    
+    // returns the reducer of every region key or null if not set
+    public static int[] getRegionAssignment(Configuration conf) {
+        String s = conf.get(regionAssignment);
+        if(s == null || s.isEmpty())
+            return null;
+        String[] split = s.split(",");
+        int[] reducers = new int[split.length];
+        for(int i = 0; i < split.length; i++)
+            reducers[i] = Integer.parseInt(split[i]);
+        return reducers;
+    }
+    
     private static final String minChrSize = "minchrSize";
     private static final int DEFAULT_MIN_CHR_SIZE = 63025520;
     public static void setMinChrLength(Configuration conf, int val) {
@@ -6,12 +6,20 @@
 
 package be.ugent.intec.halvade.utils;
 
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 
 /**
@@ -25,6 +33,8 @@ public class HalvadeFileLock {
     protected FileLock lock;
     protected String dir, filename;
     protected TaskInputOutputContext context;
+    protected static final int PROGRESS_INTERVAL = 60; // seconds
+    protected static final int LOCK_TIMEOUT = 4 * 60 * 60; // seconds
     
     public HalvadeFileLock(TaskInputOutputContext context, String dir, String filename) {
         this.dir = dir;
@@ -45,16 +55,41 @@ public class HalvadeFileLock {
         file = new RandomAccessFile(lockfile, "rw");
         f = file.getChannel();
         lock = f.tryLock();  
-        int loop = 60;
-        int i =0;
-        while(lock == null) {
-            if (i % loop == 0)  {
-                Logger.DEBUG("waiting for lock...");
-                context.setStatus("waiting for lock...");
+        if(lock != null)
+            return;
+        // block on the lock in another thread so this one can report progress
+        long startTime = System.currentTimeMillis();
+        Logger.DEBUG("waiting for lock...");
+        context.setStatus("waiting for lock...");
+        ExecutorService waiter = Executors.newSingleThreadExecutor();
+        Future<FileLock> pending = waiter.submit(new Callable<FileLock>() {
+            @Override
+            public FileLock call() throws IOException {
+                return f.lock();
             }
-            Thread.sleep(1000);
-            i++;
-            lock = f.tryLock();
+        });
+        try {
+            int waited = 0;
+            while(lock == null) {
+                try {
+                    lock = pending.get(PROGRESS_INTERVAL, TimeUnit.SECONDS);
+                } catch (TimeoutException ex) {
+                    waited += PROGRESS_INTERVAL;
+                    if(waited >= LOCK_TIMEOUT)
+                        throw new IOException("timed out after " + waited + " seconds waiting for " + lockfile);
+                    Logger.DEBUG("waiting for lock...");
+                    context.progress();
+                } catch (ExecutionException ex) {
+                    throw new IOException(ex.getCause());
+                }
+            }
+        } finally {
+            if(lock == null) {
+                pending.cancel(true);
+                file.close();
+            }
+            waiter.shutdownNow();
+            context.getCounter(HalvadeCounters.TIME_LOCK_WAIT).increment(System.currentTimeMillis() - startTime);
         }
     }
     
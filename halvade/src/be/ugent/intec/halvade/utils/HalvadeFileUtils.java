@@ -18,19 +18,31 @@
 package be.ugent.intec.halvade.utils;
 
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.zip.GZIPInputStream;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.broad.tribble.index.Index;
+import org.broad.tribble.index.IndexFactory;
+import org.broadinstitute.variant.vcf.VCFCodec;
 
 /**
  *
@@ -119,6 +131,14 @@ public class HalvadeFileUtils {
         return attemptDownloadFileFromHDFS(context, fs, from, to, RETRIES);            
     }
     
+    protected static void downloadFilesFromHDFS(TaskInputOutputContext context, FileSystem fs, String from, String to, String[] suffixes) 
+            throws IOException, InterruptedException {
+        ParallelDownloader downloader = new ParallelDownloader(context, HalvadeConf.getDownloadThreads(context.getConfiguration()));
+        for (String suffix : suffixes) 
+            downloader.add(fs, from + suffix, to + suffix);
+        downloader.download();
+    }
+    
     /**
      * @return returns 0 if successfull, -1 if filesize is incorrect and -2 if an exception occurred
      */
@@ -192,6 +212,86 @@ public class HalvadeFileUtils {
          "Genome", "genomeParameters.txt", "SA", "SAindex"};
     protected static String[] STAR_REF_OPTIONAL_FILES =  {"sjdbInfo.txt", "sjdbList.out.tab"};
     
+    // links in the task working directory to the files localized by YARN
+    protected static String CACHE_REF_LINK = "halvade_ref";
+    protected static String CACHE_STAR_LINK = "halvade_star_";
+    protected static String CACHE_STAR_DIR = "halvade_star/";
+    protected static String CACHE_SITES_LINK = "halvade_sites_";
+    
+    /*
+     * registers the reference, index and known sites as cache files so the node manager
+     * localizes them once per node before the tasks start, the tasks then use these 
+     * instead of downloading under a lock
+     */
+    public static void addReferenceToDistributedCache(Job job, Configuration conf, boolean bwa, boolean star, boolean sites) 
+            throws IOException, URISyntaxException {
+        String HDFSRef = HalvadeConf.getRefOnHDFS(conf);
+        LinkedHashSet<String> refFiles = new LinkedHashSet<>(Arrays.asList(GATK_REF_FILES));
+        if(bwa)
+            refFiles.addAll(Arrays.asList(BWA_REF_FILES));
+        for(String suffix : refFiles)
+            job.addCacheFile(new URI(HDFSRef + suffix + "#" + CACHE_REF_LINK + suffix));
+        if(star) {
+            String HDFSStar = HalvadeConf.getStarDirOnHDFS(conf);
+            FileSystem fs = FileSystem.get(new URI(HDFSStar), conf);
+            for(String file : getSTARFiles(fs, HDFSStar))
+                job.addCacheFile(new URI(HDFSStar + file + "#" + CACHE_STAR_LINK + file));
+        }
+        if(sites) {
+            for(String site : HalvadeConf.getKnownSitesOnHDFS(conf)) {
+                String name = site.substring(site.lastIndexOf('/') + 1);
+                job.addCacheFile(new URI(site + "#" + CACHE_SITES_LINK + name));
+                FileSystem fs = FileSystem.get(new URI(site), conf);
+                if(fs.exists(new Path(site + ".idx")))
+                    job.addCacheFile(new URI(site + ".idx#" + CACHE_SITES_LINK + name + ".idx"));
+            }
+        }
+        Logger.DEBUG("added " + job.getCacheFiles().length + " reference files to the distributed cache");
+    }
+    
+    protected static String getCachedFile(String link) throws IOException {
+        File f = new File(link);
+        if(!f.exists())
+            throw new IOException(link + " not found in the distributed cache");
+        return f.getAbsolutePath();
+    }
+    
+    /*
+     * STAR needs a genome directory and keys its shared memory on that directory,
+     * so all tasks on a node link the localized files in one directory on local scratch.
+     * the links point to the files in the node's cache, not to the links in the working
+     * directory of the task, which is removed when the container finishes
+     */
+    protected static String getCachedSTARDir(TaskInputOutputContext context) throws IOException {
+        String tmpDir = HalvadeConf.getScratchTempDir(context.getConfiguration());
+        if(!tmpDir.endsWith("/")) tmpDir = tmpDir + "/";
+        File dir = new File(tmpDir + CACHE_STAR_DIR);
+        HalvadeFileLock lock = new HalvadeFileLock(context, tmpDir, STARG_LOCK);
+        try {
+            lock.getLock();
+            dir.mkdirs();
+            File[] links = new File(".").listFiles();
+            if(links != null) {
+                for(File link : links) {
+                    if(link.getName().startsWith(CACHE_STAR_LINK)) {
+                        java.nio.file.Path cached = link.toPath().toRealPath();
+                        java.nio.file.Path target = new File(dir, link.getName().substring(CACHE_STAR_LINK.length())).toPath();
+                        if(!Files.isSymbolicLink(target) || !Files.readSymbolicLink(target).equals(cached)) {
+                            Files.deleteIfExists(target);
+                            Files.createSymbolicLink(target, cached);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Logger.EXCEPTION(ex);
+        } finally {
+            lock.releaseLock();
+        }
+        getCachedFile(dir.getAbsolutePath() + "/" + STAR_REF_FILES[0]);
+        return dir.getAbsolutePath() + "/";
+    }
+    
     protected static String findFile(String directory, String suffix, boolean recursive) {
         File dir  = new File(directory);
         if(dir.isDirectory() && dir.listFiles() != null) {
@@ -215,6 +315,8 @@ public class HalvadeFileUtils {
     
     public static String downloadBWAIndex(TaskInputOutputContext context, String id) throws IOException, URISyntaxException {
         Configuration conf = context.getConfiguration();
+        if(HalvadeConf.getUseDistributedCache(conf))
+            return getCachedFile(CACHE_REF_LINK + BWA_REF_FILES[0]);
         String tmpDir = HalvadeConf.getScratchTempDir(conf);
         String refDir = HalvadeConf.getRefDirOnScratch(conf);
         if(!refDir.endsWith("/")) refDir = refDir + "/";
@@ -238,9 +340,7 @@ public class HalvadeFileUtils {
                     if (!foundExisting)
                         refBase = refDir + "bwa_ref-" + id;
 
-                    for (String suffix : BWA_REF_FILES) {
-                        attemptDownloadFileFromHDFS(context, fs, HDFSRef + suffix, refBase + suffix, RETRIES);                
-                    }
+                    downloadFilesFromHDFS(context, fs, HDFSRef, refBase, BWA_REF_FILES);
                     Logger.INFO("FINISHED downloading the complete reference index to local scratch");
                     if(!foundExisting) {
                         File f = new File(refBase + HALVADE_BWA_SUFFIX);
@@ -261,9 +361,7 @@ public class HalvadeFileUtils {
                 if (!foundExisting)
                     refBase = refDir + "bwa_ref-" + id;
 
-                for (String suffix : BWA_REF_FILES) {
-                    attemptDownloadFileFromHDFS(context, fs, HDFSRef + suffix, refBase + suffix, RETRIES);                
-                }
+                downloadFilesFromHDFS(context, fs, HDFSRef, refBase, BWA_REF_FILES);
                 Logger.INFO("FINISHED downloading the complete reference index to local scratch");
                 if(!foundExisting) {
                     File f = new File(refBase + HALVADE_BWA_SUFFIX);
@@ -288,6 +386,8 @@ public class HalvadeFileUtils {
     
     public static String downloadGATKIndex(TaskInputOutputContext context, String id) throws IOException, URISyntaxException {
         Configuration conf = context.getConfiguration();
+        if(HalvadeConf.getUseDistributedCache(conf))
+            return getCachedFile(CACHE_REF_LINK + GATK_REF_FILES[0]);
         String tmpDir = HalvadeConf.getScratchTempDir(conf);
         String refDir = HalvadeConf.getRefDirOnScratch(conf);
         if(!refDir.endsWith("/")) refDir = refDir + "/";
@@ -311,9 +411,7 @@ public class HalvadeFileUtils {
                     if (!foundExisting)
                         refBase = refDir + "bwa_ref-" + id;
 
-                    for (String suffix : GATK_REF_FILES) {
-                        attemptDownloadFileFromHDFS(context, fs, HDFSRef + suffix, refBase + suffix, RETRIES);                
-                    }
+                    downloadFilesFromHDFS(context, fs, HDFSRef, refBase, GATK_REF_FILES);
                     Logger.INFO("FINISHED downloading the complete reference index to local scratch");
                     if(!foundExisting) {
                         File f = new File(refBase + HALVADE_GATK_SUFFIX);
@@ -332,9 +430,7 @@ public class HalvadeFileUtils {
                 if (!foundExisting)
                     refBase = refDir + "bwa_ref-" + id;
 
-                for (String suffix : GATK_REF_FILES) {
-                    attemptDownloadFileFromHDFS(context, fs, HDFSRef + suffix, refBase + suffix, RETRIES);                
-                }
+                downloadFilesFromHDFS(context, fs, HDFSRef, refBase, GATK_REF_FILES);
                 Logger.INFO("FINISHED downloading the complete reference index to local scratch");
                 if(!foundExisting) {
                     File f = new File(refBase + HALVADE_GATK_SUFFIX);
@@ -358,6 +454,8 @@ public class HalvadeFileUtils {
     
     public static String downloadSTARIndex(TaskInputOutputContext context, String id, boolean usePass2Genome) throws IOException, URISyntaxException {
         Configuration conf = context.getConfiguration();
+        if(!usePass2Genome && HalvadeConf.getUseDistributedCache(conf))
+            return getCachedSTARDir(context);
         String tmpDir = HalvadeConf.getScratchTempDir(conf);
         String refDir = HalvadeConf.getRefDirOnScratch(conf);
         if(!refDir.endsWith("/")) refDir = refDir + "/";
@@ -388,13 +486,7 @@ public class HalvadeFileUtils {
                     }
                     Logger.DEBUG("STAR dir: " + refBase);
                     if(!usePass2Genome) {
-                        for (String suffix : STAR_REF_FILES) {
-                            attemptDownloadFileFromHDFS(context, fs, HDFSRef + suffix, refBase + suffix, RETRIES);                
-                        }
-                        for (String suffix : STAR_REF_OPTIONAL_FILES) {
-                            if(fs.exists(new Path(HDFSRef + suffix))) 
-                                attemptDownloadFileFromHDFS(context, fs, HDFSRef + suffix, refBase + suffix, RETRIES); 
-                        }
+                        downloadFilesFromHDFS(context, fs, HDFSRef, refBase, getSTARFiles(fs, HDFSRef));
                     }
                     Logger.INFO("FINISHED downloading the complete reference index to local scratch");
                     if(!foundExisting) {
@@ -421,13 +513,7 @@ public class HalvadeFileUtils {
                 }
                 Logger.DEBUG("STAR dir: " + refBase);
                 if(!usePass2Genome) {
-                    for (String suffix : STAR_REF_FILES) {
-                        attemptDownloadFileFromHDFS(context, fs, HDFSRef + suffix, refBase + suffix, RETRIES);                
-                    }
-                    for (String suffix : STAR_REF_OPTIONAL_FILES) {
-                        if(fs.exists(new Path(HDFSRef + suffix))) 
-                            attemptDownloadFileFromHDFS(context, fs, HDFSRef + suffix, refBase + suffix, RETRIES); 
-                    }
+                    downloadFilesFromHDFS(context, fs, HDFSRef, refBase, getSTARFiles(fs, HDFSRef));
                 }
                 Logger.INFO("FINISHED downloading the complete reference index to local scratch");
                 if(!foundExisting) {
@@ -450,12 +536,43 @@ public class HalvadeFileUtils {
         return refBase;
     }
     
+    protected static String[] getSTARFiles(FileSystem fs, String HDFSRef) throws IOException {
+        ArrayList<String> files = new ArrayList<>(Arrays.asList(STAR_REF_FILES));
+        for (String suffix : STAR_REF_OPTIONAL_FILES) {
+            if(fs.exists(new Path(HDFSRef + suffix))) 
+                files.add(suffix);
+        }
+        return files.toArray(new String[files.size()]);
+    }
+    
+    protected static void downloadSites(TaskInputOutputContext context, String[] HDFSsites, String[] localSites, String refBase, boolean foundExisting) 
+            throws IOException, URISyntaxException, InterruptedException {
+        ParallelDownloader downloader = new ParallelDownloader(context, HalvadeConf.getDownloadThreads(context.getConfiguration()));
+        for (int i = 0; i < HDFSsites.length; i++) {
+            String fullName = HDFSsites[i];
+            String name = fullName.substring(fullName.lastIndexOf('/') + 1);
+            Logger.DEBUG("Downloading " + name);
+            FileSystem fs = FileSystem.get(new URI(fullName), context.getConfiguration());
+            downloader.add(fs, fullName, refBase + name);
+            localSites[i] = refBase + name;
+            // attempt to download .idx file
+            if(!foundExisting && fs.exists(new Path(fullName + ".idx")))
+                downloader.add(fs, fullName + ".idx", refBase + name + ".idx");
+        }
+        downloader.download();
+    }
+    
     public static String[] downloadSites(TaskInputOutputContext context, String id) throws IOException, URISyntaxException, InterruptedException {  
         Configuration conf = context.getConfiguration();
         String tmpDir = HalvadeConf.getScratchTempDir(conf);
         String refDir = HalvadeConf.getRefDirOnScratch(conf);
         String HDFSsites[] = HalvadeConf.getKnownSitesOnHDFS(conf);
         String[] localSites = new String[HDFSsites.length];
+        if(HalvadeConf.getUseDistributedCache(conf)) {
+            for (int i = 0; i < HDFSsites.length; i++) 
+                localSites[i] = getCachedFile(CACHE_SITES_LINK + HDFSsites[i].substring(HDFSsites[i].lastIndexOf('/') + 1));
+            return localSites;
+        }
         if(!refDir.endsWith("/")) refDir = refDir + "/";
         HalvadeFileLock lock = new HalvadeFileLock(context, refDir, DBSNP_LOCK);
         String refBase = null;
@@ -480,17 +597,7 @@ public class HalvadeFileUtils {
                     }
                     Logger.DEBUG("dbSNP dir: " + refBase);
 
-                    for (int i = 0; i < HDFSsites.length; i++) {
-                        String fullName = HDFSsites[i];
-                        String name = fullName.substring(fullName.lastIndexOf('/') + 1);
-                        Logger.DEBUG("Downloading " + name);
-                        FileSystem fs = FileSystem.get(new URI(fullName), conf);
-                        attemptDownloadFileFromHDFS(context, fs, fullName, refBase + name, RETRIES);
-                        localSites[i] = refBase + name;
-                        // attempt to download .idx file
-                        if(!foundExisting && fs.exists(new Path(fullName + ".idx")))
-                            attemptDownloadFileFromHDFS(context, fs, fullName + ".idx", refBase + name + ".idx", RETRIES);
-                    }
+                    downloadSites(context, HDFSsites, localSites, refBase, foundExisting);
 
                     Logger.INFO("finished downloading the new sites to local scratch");
                     if(!foundExisting) {
@@ -513,17 +620,7 @@ public class HalvadeFileUtils {
                 }
                 Logger.DEBUG("dbSNP dir: " + refBase);
 
-                for (int i = 0; i < HDFSsites.length; i++) {
-                    String fullName = HDFSsites[i];
-                    String name = fullName.substring(fullName.lastIndexOf('/') + 1);
-                    Logger.DEBUG("Downloading " + name);
-                    FileSystem fs = FileSystem.get(new URI(fullName), conf);
-                    attemptDownloadFileFromHDFS(context, fs, fullName, refBase + name, RETRIES);
-                    localSites[i] = refBase + name;
-                    // attempt to download .idx file
-                    if(!foundExisting && fs.exists(new Path(fullName + ".idx")))
-                        attemptDownloadFileFromHDFS(context, fs, fullName + ".idx", refBase + name + ".idx", RETRIES);
-                }
+                downloadSites(context, HDFSsites, localSites, refBase, foundExisting);
 
                 Logger.INFO("finished downloading the new sites to local scratch");
                 if(!foundExisting) {
@@ -569,6 +666,34 @@ public class HalvadeFileUtils {
     public static boolean removeLocalFile(String filename) {
         return removeLocalFile(false, filename);
     }
+    /*
+     * concatenates vcf files of consecutive intervals of the same samples,
+     * only the header of the first file is kept
+     */
+    public static void concatenateVCFs(String[] inputs, String output) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(output))) {
+            for(int i = 0; i < inputs.length; i++) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(inputs[i]))) {
+                    String line;
+                    while((line = reader.readLine()) != null) {
+                        if(i == 0 || !line.startsWith("#")) {
+                            writer.write(line);
+                            writer.newLine();
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /*
+     * writes the tribble index that gatk makes next to its vcf output
+     */
+    public static void indexVCF(String vcf) throws IOException {
+        Index index = IndexFactory.createDynamicIndex(new File(vcf), new VCFCodec());
+        IndexFactory.writeIndex(index, new File(vcf + ".idx"));
+    }
+    
     public static boolean removeLocalFile(boolean keep, String filename) {
         if(keep) return false;
         File f = new File(filename);
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ *
+ * @author ddecap
+ */
+public class ParallelDownloader {
+    /*
+     * downloads a set of files with a pool of threads, large files are split in 
+     * chunks that are fetched with ranged reads into a .part file, which is renamed 
+     * after the length and the md5 in an optional .md5 file next to it on HDFS are checked
+     * files that already exist locally with the correct size are skipped
+     */
+    protected static final long CHUNK_SIZE = 64L * 1024 * 1024;
+    protected static final int BUFFER_SIZE = 1024 * 1024;
+    protected static final int RETRIES = 3;
+    protected static final int PROGRESS_INTERVAL = 10; // seconds
+    protected static final String PART_SUFFIX = ".part";
+    protected static final String MD5_SUFFIX = ".md5";
+    protected TaskInputOutputContext context;
+    protected int threads;
+    protected ArrayList<FileDownload> downloads;
+    
+    protected static class FileDownload {
+        FileSystem fs;
+        Path from;
+        String to;
+        long length;
+        ArrayList<Future<Long>> chunks;
+
+        FileDownload(FileSystem fs, String from, String to) {
+            this.fs = fs;
+            this.from = new Path(from);
+            this.to = to;
+        }
+    }
+    
+    protected static class Chunk implements Callable<Long> {
+        FileDownload file;
+        long offset, length;
+
+        Chunk(FileDownload file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        @Override
+        public Long call() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (FSDataInputStream in = file.fs.open(file.from);
+                    RandomAccessFile out = new RandomAccessFile(file.to + PART_SUFFIX, "rw")) {
+                in.seek(offset);
+                out.seek(offset);
+                long left = length;
+                while(left > 0) {
+                    int read = in.read(buffer, 0, (int)Math.min(buffer.length, left));
+                    if(read < 0)
+                        throw new EOFException("unexpected end of " + file.from + " at " + (offset + length - left));
+                    out.write(buffer, 0, read);
+                    left -= read;
+                }
+            }
+            return length;
+        }
+    }
+    
+    public ParallelDownloader(TaskInputOutputContext context, int threads) {
+        this.context = context;
+        this.threads = Math.max(1, threads);
+        downloads = new ArrayList<>();
+    }
+    
+    public void add(FileSystem fs, String from, String to) {
+        downloads.add(new FileDownload(fs, from, to));
+    }
+    
+    public void download() throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        long bytes = 0;
+        ArrayList<FileDownload> todo = new ArrayList<>();
+        for(FileDownload d : downloads) {
+            d.length = d.fs.getFileStatus(d.from).getLen();
+            File f = new File(d.to);
+            if(f.exists() && f.length() == d.length)
+                Logger.DEBUG("file \"" + d.to + "\" exists");
+            else
+                todo.add(d);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            int attempt = 0;
+            while(!todo.isEmpty() && attempt < RETRIES) {
+                for(FileDownload d : todo)
+                    submit(pool, d);
+                ArrayList<FileDownload> failed = new ArrayList<>();
+                for(FileDownload d : todo) {
+                    if(finish(d)) 
+                        bytes += d.length;
+                    else 
+                        failed.add(d);
+                }
+                todo = failed;
+                attempt++;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        if(!todo.isEmpty()) 
+            throw new IOException("failed to download " + todo.get(0).from + " from HDFS");
+        long time = System.currentTimeMillis() - startTime;
+        context.getCounter(HalvadeCounters.FIN_FROM_HDFS).increment(bytes);
+        context.getCounter(HalvadeCounters.TIME_REF_DOWNLOAD).increment(time);
+        if(bytes > 0)
+            Logger.DEBUG("downloaded " + (bytes / (1024 * 1024)) + " MB in " + (time / 1000) + " s [" 
+                    + (time > 0 ? (bytes / 1024) / time : 0) + " MB/s] with " + threads + " threads");
+    }
+    
+    protected void submit(ExecutorService pool, FileDownload d) throws IOException {
+        Logger.DEBUG("attempting download of \"" + d.to + "\"");
+        try (RandomAccessFile out = new RandomAccessFile(d.to + PART_SUFFIX, "rw")) {
+            out.setLength(d.length);
+        }
+        d.chunks = new ArrayList<>();
+        long offset = 0;
+        do {
+            long len = Math.min(CHUNK_SIZE, d.length - offset);
+            d.chunks.add(pool.submit(new Chunk(d, offset, len)));
+            offset += len;
+        } while(offset < d.length);
+    }
+    
+    protected boolean finish(FileDownload d) throws InterruptedException {
+        File part = new File(d.to + PART_SUFFIX);
+        try {
+            for(Future<Long> chunk : d.chunks) {
+                boolean done = false;
+                while(!done) {
+                    try {
+                        chunk.get(PROGRESS_INTERVAL, TimeUnit.SECONDS);
+                        done = true;
+                    } catch (TimeoutException ex) {
+                        context.progress();
+                    }
+                }
+            }
+            if(part.length() != d.length) {
+                Logger.DEBUG("incorrect filesize: " + part.length() + " =/= " + d.length);
+                part.delete();
+                return false;
+            }
+            if(!checkMD5(d, part)) {
+                part.delete();
+                return false;
+            }
+            File f = new File(d.to);
+            f.delete();
+            if(!part.renameTo(f))
+                throw new IOException("could not rename " + part + " to " + f);
+            Logger.DEBUG(d.from + " downloaded");
+            return true;
+        } catch (ExecutionException | IOException ex) {
+            Logger.DEBUG("failed to download " + d.from + " from HDFS: " + ex.getLocalizedMessage());
+            for(Future<Long> chunk : d.chunks)
+                chunk.cancel(true);
+            part.delete();
+            return false;
+        }
+    }
+    
+    protected boolean checkMD5(FileDownload d, File local) throws IOException {
+        Path md5File = d.from.suffix(MD5_SUFFIX);
+        if(!d.fs.exists(md5File))
+            return true;
+        String expected;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(d.fs.open(md5File)))) {
+            String line = br.readLine();
+            if(line == null || line.trim().isEmpty())
+                return true;
+            expected = line.trim().split("\\s+")[0];
+        }
+        String md5 = getMD5(local);
+        if(!md5.equalsIgnoreCase(expected)) {
+            Logger.DEBUG("md5 of " + d.to + " doesn't match: " + md5 + " =/= " + expected);
+            return false;
+        }
+        Logger.DEBUG("md5 of " + d.to + " is correct");
+        return true;
+    }
+    
+    protected String getMD5(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while((read = in.read(buffer)) != -1)
+                md.update(buffer, 0, read);
+        }
+        StringBuilder sb = new StringBuilder();
+        for(byte b : md.digest())
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
@@ -54,10 +54,12 @@ public class ProcessBuilderWrapper {
     // streams
     StreamGobbler stderr;
     StreamGobbler stdout;
+    BufferedOutputStream stdinStream;
     BufferedWriter stdin;
     ProcMon mon;
     long startTime, estimatedTime;
     int threads = 1;
+    private static final int STDIN_BUFFER_SIZE = 1024*1024;
     
     public ProcessBuilderWrapper(String[] command, String libdir) {
         this.command = command;
@@ -103,7 +105,9 @@ public class ProcessBuilderWrapper {
                 this.stderr = new StreamGobbler(p.getErrorStream(), stderr_, "[PROCESS_ERR]");
                 this.stderr.start();
             } 
-            stdin = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()));
+            // the writer shares the byte buffer, flush it before writing bytes directly
+            stdinStream = new BufferedOutputStream(p.getOutputStream(), STDIN_BUFFER_SIZE);
+            stdin = new BufferedWriter(new OutputStreamWriter(stdinStream));
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
             throw new ProcessException(ex.getMessage(), -1);
@@ -144,6 +148,10 @@ public class ProcessBuilderWrapper {
         return p.getOutputStream();
     }
     
+    public BufferedOutputStream getSTDINByteStream() {
+        return stdinStream;
+    }
+    
     public BufferedWriter getSTDINWriter() {
         return stdin;
     }
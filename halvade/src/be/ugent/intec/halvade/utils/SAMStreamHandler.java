@@ -23,6 +23,14 @@ import be.ugent.intec.halvade.tools.AlignerInstance;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import net.sf.samtools.*;
 import net.sf.samtools.util.BufferedLineReader;
 import org.apache.hadoop.io.LongWritable;
@@ -56,6 +64,9 @@ public class SAMStreamHandler extends Thread {
     AlignerInstance instance;
     boolean isPaired = true;
     protected boolean useCompact;
+    protected boolean useBam;
+    protected int parserThreads;
+    protected static final int LINES_PER_BATCH = 4096;
 
     public SAMStreamHandler(AlignerInstance instance, Context context, boolean useCompact) {
         this.is = instance.getSTDOUTStream();
@@ -69,10 +80,16 @@ public class SAMStreamHandler extends Thread {
         samRecordFactory = new DefaultSAMRecordFactory();
         this.context = context;
         isPaired = HalvadeConf.getIsPaired(context.getConfiguration());
+        useBam = HalvadeConf.getAlignerBamOutput(context.getConfiguration());
+        parserThreads = HalvadeConf.getSAMParserThreads(context.getConfiguration());
     }
     
     @Override
     public void run() {
+        if(useBam) {
+            runBam();
+            return;
+        }
         // get header first 
         SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
         headerCodec.setValidationStringency(validationStringency);
@@ -82,24 +99,173 @@ public class SAMStreamHandler extends Thread {
         } else {
             mFileHeader = instance.getFileHeader();
         }
+        if(parserThreads > 1) {
+            runParallel();
+            return;
+        }
         parser = new SAMLineParser(samRecordFactory, validationStringency, mFileHeader, mParentReader, mFile);
         // now process each read...
         int count = 0;
+        long unmapped = 0, diffChr = 0;
         mCurrentLine = mReader.readLine();
         try {
             while (mCurrentLine != null) {
-                SAMRecord samrecord = parser.parseLine(mCurrentLine, mReader.getLineNumber());
-                // only write mapped records as output
-                // paired or unpaired ?? need to know to check for boundaries
-                
-                if(isPaired) count += instance.writePairedSAMRecordToContext(samrecord, useCompact);
-                else count += instance.writeSAMRecordToContext(samrecord, useCompact);
+                // only parse and write mapped records as output
+                int filter = instance.filterSAMLine(mCurrentLine);
+                if(filter == AlignerInstance.SAM_LINE_UNMAPPED)
+                    unmapped++;
+                else if(filter == AlignerInstance.SAM_LINE_DIFF_CHR)
+                    diffChr++;
+                else {
+                    SAMRecord samrecord = parser.parseLine(mCurrentLine, mReader.getLineNumber());
+                    // paired or unpaired ?? need to know to check for boundaries
+                    if(isPaired) count += instance.writePairedSAMRecordToContext(samrecord, useCompact);
+                    else count += instance.writeSAMRecordToContext(samrecord, useCompact);
+                }
                 //advance line even if bad line
                 advanceLine();
             }
         } catch (IOException | InterruptedException ex) {
             Logger.EXCEPTION(ex);
         }
+        instance.countFilteredReads(unmapped, diffChr);
+        Logger.DEBUG("SAMstream counts " + count + " records, dropped " + unmapped 
+                + " unmapped and " + diffChr + " different chromosome reads before parsing");
+    }
+    
+    /*
+     * this thread reads the lines in batches, the batches are parsed by a pool
+     * of threads and a single thread writes the records in order to the context
+     */
+    protected void runParallel() {
+        Logger.DEBUG("parsing SAM records with " + parserThreads + " threads");
+        final ThreadLocal<SAMLineParser> parsers = new ThreadLocal<SAMLineParser>() {
+            @Override
+            protected SAMLineParser initialValue() {
+                return new SAMLineParser(samRecordFactory, validationStringency, mFileHeader, mParentReader, mFile);
+            }
+        };
+        final FutureTask<ParsedBatch> lastBatch = new FutureTask<>(new Callable<ParsedBatch>() {
+            @Override
+            public ParsedBatch call() {
+                return null;
+            }
+        });
+        final ArrayBlockingQueue<Future<ParsedBatch>> batches = new ArrayBlockingQueue<>(2 * parserThreads);
+        final int[] count = {0};
+        Thread emitter = new Thread("SAMStreamEmitter") {
+            @Override
+            public void run() {
+                boolean failed = false;
+                try {
+                    Future<ParsedBatch> batch = batches.take();
+                    while(batch != lastBatch) {
+                        // keep taking batches after an error so the reader doesn't block
+                        if(!failed) {
+                            try {
+                                ParsedBatch parsed = batch.get();
+                                instance.countFilteredReads(parsed.unmapped, parsed.diffChr);
+                                for(SAMRecord samrecord : parsed.records) {
+                                    if(isPaired) count[0] += instance.writePairedSAMRecordToContext(samrecord, useCompact);
+                                    else count[0] += instance.writeSAMRecordToContext(samrecord, useCompact);
+                                }
+                            } catch (IOException | ExecutionException ex) {
+                                Logger.EXCEPTION(ex);
+                                failed = true;
+                            }
+                        }
+                        batch = batches.take();
+                    }
+                } catch (InterruptedException ex) {
+                    Logger.EXCEPTION(ex);
+                }
+            }
+        };
+        emitter.start();
+        ExecutorService pool = Executors.newFixedThreadPool(parserThreads);
+        try {
+            ArrayList<String> lines = new ArrayList<>(LINES_PER_BATCH);
+            int firstLine = mReader.getLineNumber() + 1;
+            mCurrentLine = mReader.readLine();
+            while (mCurrentLine != null) {
+                lines.add(mCurrentLine);
+                if(lines.size() == LINES_PER_BATCH) {
+                    batches.put(pool.submit(new ParseTask(lines, firstLine, parsers, instance)));
+                    lines = new ArrayList<>(LINES_PER_BATCH);
+                    firstLine = mReader.getLineNumber() + 1;
+                }
+                advanceLine();
+            }
+            if(!lines.isEmpty())
+                batches.put(pool.submit(new ParseTask(lines, firstLine, parsers, instance)));
+            batches.put(lastBatch);
+            emitter.join();
+        } catch (InterruptedException ex) {
+            Logger.EXCEPTION(ex);
+        } finally {
+            pool.shutdown();
+        }
+        Logger.DEBUG("SAMstream counts " + count[0] + " records");
+    }
+    
+    protected static class ParsedBatch {
+        ArrayList<SAMRecord> records;
+        long unmapped, diffChr;
+    }
+    
+    protected static class ParseTask implements Callable<ParsedBatch> {
+        private final ArrayList<String> lines;
+        private final int firstLine;
+        private final ThreadLocal<SAMLineParser> parsers;
+        private final AlignerInstance instance;
+
+        public ParseTask(ArrayList<String> lines, int firstLine, ThreadLocal<SAMLineParser> parsers, AlignerInstance instance) {
+            this.lines = lines;
+            this.firstLine = firstLine;
+            this.parsers = parsers;
+            this.instance = instance;
+        }
+
+        @Override
+        public ParsedBatch call() {
+            SAMLineParser parser = parsers.get();
+            ParsedBatch batch = new ParsedBatch();
+            batch.records = new ArrayList<>(lines.size());
+            for(int i = 0; i < lines.size(); i++) {
+                int filter = instance.filterSAMLine(lines.get(i));
+                if(filter == AlignerInstance.SAM_LINE_UNMAPPED)
+                    batch.unmapped++;
+                else if(filter == AlignerInstance.SAM_LINE_DIFF_CHR)
+                    batch.diffChr++;
+                else
+                    batch.records.add(parser.parseLine(lines.get(i), firstLine + i));
+            }
+            return batch;
+        }
+    }
+    
+    /*
+     * reads uncompressed BAM, the records are decoded lazily so only the 
+     * fields that are used are decoded
+     */
+    protected void runBam() {
+        SAMFileReader reader = new SAMFileReader(is, false);
+        reader.setValidationStringency(validationStringency);
+        if(mFileHeader == null) {
+            mFileHeader = reader.getFileHeader();
+            instance.setFileHeader(mFileHeader);
+        }
+        int count = 0;
+        try {
+            for(SAMRecord samrecord : reader) {
+                if(isPaired) count += instance.writePairedSAMRecordToContext(samrecord, useCompact);
+                else count += instance.writeSAMRecordToContext(samrecord, useCompact);
+            }
+        } catch (IOException | InterruptedException ex) {
+            Logger.EXCEPTION(ex);
+        } finally {
+            reader.close();
+        }
         Logger.DEBUG("SAMstream counts " + count + " records");
     }
     
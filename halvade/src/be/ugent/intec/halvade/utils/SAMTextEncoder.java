@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+import net.sf.samtools.SAMRecord;
+
+/**
+ *
+ * @author ddecap
+ */
+public class SAMTextEncoder {
+    /*
+     * writes a record as one line of sam text into a reused byte buffer, 
+     * the output is the same as SAMRecord.getSAMString() without building
+     * strings and encoding chars for every record
+     */
+    protected static final int INITIAL_SIZE = 4096;
+    protected static final byte TAB = '\t';
+    protected static final byte NEWLINE = '\n';
+    protected static final byte QUALITY_OFFSET = 33;
+    protected byte[] buffer;
+    protected int length;
+
+    public SAMTextEncoder() {
+        buffer = new byte[INITIAL_SIZE];
+        length = 0;
+    }
+    
+    public void encode(SAMRecord sam) {
+        length = 0;
+        List<SAMRecord.SAMTagAndValue> attributes = sam.getAttributes();
+        for(SAMRecord.SAMTagAndValue tag : attributes) {
+            if(tag.value.getClass().isArray()) {
+                // arrays can be unsigned, which only the samtools writer knows
+                writeString(sam.getSAMString());
+                return;
+            }
+        }
+        writeString(sam.getReadName());
+        write(TAB);
+        writeInt(sam.getFlags());
+        write(TAB);
+        writeString(sam.getReferenceName());
+        write(TAB);
+        writeInt(sam.getAlignmentStart());
+        write(TAB);
+        writeInt(sam.getMappingQuality());
+        write(TAB);
+        writeCigar(sam.getCigar());
+        write(TAB);
+        if(sam.getReferenceName().equals(sam.getMateReferenceName()) && 
+                !SAMRecord.NO_ALIGNMENT_REFERENCE_NAME.equals(sam.getReferenceName()))
+            write((byte)'=');
+        else
+            writeString(sam.getMateReferenceName());
+        write(TAB);
+        writeInt(sam.getMateAlignmentStart());
+        write(TAB);
+        writeInt(sam.getInferredInsertSize());
+        write(TAB);
+        byte[] bases = sam.getReadBases();
+        if(bases.length == 0) {
+            write((byte)'*');
+        } else {
+            ensureCapacity(length + bases.length);
+            System.arraycopy(bases, 0, buffer, length, bases.length);
+            length += bases.length;
+        }
+        write(TAB);
+        byte[] quals = sam.getBaseQualities();
+        if(quals.length == 0) {
+            write((byte)'*');
+        } else {
+            ensureCapacity(length + quals.length);
+            for(byte q : quals)
+                buffer[length++] = (byte)(q + QUALITY_OFFSET);
+        }
+        for(SAMRecord.SAMTagAndValue tag : attributes) {
+            write(TAB);
+            writeAttribute(tag.tag, tag.value);
+        }
+        write(NEWLINE);
+    }
+    
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+    
+    protected void writeAttribute(String tag, Object value) {
+        writeString(tag);
+        write((byte)':');
+        if(value instanceof Integer || value instanceof Long || 
+                value instanceof Short || value instanceof Byte) {
+            write((byte)'i');
+            write((byte)':');
+            writeLong(((Number)value).longValue());
+        } else if(value instanceof Character) {
+            write((byte)'A');
+            write((byte)':');
+            write((byte)((Character)value).charValue());
+        } else if(value instanceof Float) {
+            write((byte)'f');
+            write((byte)':');
+            writeString(value.toString());
+        } else {
+            write((byte)'Z');
+            write((byte)':');
+            writeString(value.toString());
+        }
+    }
+    
+    protected void writeCigar(Cigar cigar) {
+        List<CigarElement> elements = cigar.getCigarElements();
+        if(elements.isEmpty()) {
+            write((byte)'*');
+            return;
+        }
+        for(CigarElement e : elements) {
+            writeInt(e.getLength());
+            write(CigarOperator.enumToCharacter(e.getOperator()));
+        }
+    }
+    
+    protected void writeString(String s) {
+        int n = s.length();
+        ensureCapacity(length + n);
+        for(int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if(c >= 128) {
+                // sam is ascii, but keep other characters intact
+                byte[] b = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                ensureCapacity(length + b.length);
+                System.arraycopy(b, 0, buffer, length, b.length);
+                length += b.length;
+                return;
+            }
+            buffer[length++] = (byte)c;
+        }
+    }
+    
+    protected void writeInt(int value) {
+        writeLong(value);
+    }
+    
+    protected void writeLong(long value) {
+        ensureCapacity(length + 20);
+        if(value == 0) {
+            buffer[length++] = '0';
+            return;
+        }
+        if(value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        while(value > 0) {
+            buffer[length++] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        // digits were written in reverse order
+        for(int i = start, j = length - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+    
+    protected void write(byte b) {
+        ensureCapacity(length + 1);
+        buffer[length++] = b;
+    }
+    
+    protected void ensureCapacity(int size) {
+        if(size > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(size, buffer.length * 2));
+    }
+}